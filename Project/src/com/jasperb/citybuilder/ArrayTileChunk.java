@@ -0,0 +1,68 @@
+package com.jasperb.citybuilder;
+
+import java.util.Arrays;
+
+/**
+ * Chunk that keeps each property of its tiles in a separate array.
+ */
+class ArrayTileChunk extends TileChunk {
+    private byte[] mTerrain = new byte[Constant.CHUNK_AREA];//tile types
+    private byte[] mFirstMods = new byte[Constant.CHUNK_AREA];//first terrain mod (the rest are kept by TileChunk)
+    private byte[] mBlend = new byte[Constant.CHUNK_AREA];//whether the tile is set to blend with neighbouring tiles
+    private int[] mObjects = new int[Constant.CHUNK_AREA];//ID of the object covering the tile
+
+    public ArrayTileChunk() {
+        Arrays.fill(mTerrain, DEFAULT_TERRAIN);
+        Arrays.fill(mFirstMods, DEFAULT_MOD);
+        Arrays.fill(mBlend, DEFAULT_BLEND);
+        Arrays.fill(mObjects, DEFAULT_OBJECT_ID);
+    }
+
+    @Override
+    public byte getTerrain(int index) {
+        return mTerrain[index];
+    }
+
+    @Override
+    public void setTerrain(int index, byte terrain) {
+        mTerrain[index] = terrain;
+    }
+
+    @Override
+    public byte getMod(int index, int modIndex) {
+        if (modIndex == 0)
+            return mFirstMods[index];
+        if (mFirstMods[index] == DEFAULT_MOD)
+            return DEFAULT_MOD;
+        return getExtraMod(index, modIndex);
+    }
+
+    @Override
+    public void setMod(int index, int modIndex, byte mod) {
+        if (modIndex == 0) {
+            mFirstMods[index] = mod;
+        } else {
+            setExtraMod(index, modIndex, mod);
+        }
+    }
+
+    @Override
+    public byte getBlend(int index) {
+        return mBlend[index];
+    }
+
+    @Override
+    public void setBlend(int index, byte blend) {
+        mBlend[index] = blend;
+    }
+
+    @Override
+    public int getObjectID(int index) {
+        return mObjects[index];
+    }
+
+    @Override
+    public void setObjectID(int index, int id) {
+        mObjects[index] = id;
+    }
+}
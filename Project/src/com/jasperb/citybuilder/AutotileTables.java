@@ -0,0 +1,165 @@
+package com.jasperb.citybuilder;
+
+import com.jasperb.citybuilder.Constant.TERRAIN;
+import com.jasperb.citybuilder.Constant.TERRAIN_MODS;
+
+/**
+ * Lookup tables for resolving the terrain mods of a tile from the terrain of its neighbours.
+ * The rules for rounding corners and connecting paved lines are evaluated once for every possible neighbourhood when the class is loaded,
+ * so that determining the mods of a tile only takes a table lookup per corner and one for the paved line.
+ */
+class AutotileTables {
+    /**
+     * Terrain value used for neighbours that lie outside of the city model.
+     */
+    public static final int OUT_OF_BOUNDS = TERRAIN.count;
+
+    /**
+     * Bits of a paved line neighbourhood. A neighbour's bit is set if it is a paved line, BLEND is set if the tile itself blends.
+     * Top is the row above the tile, left is the column to the left of the tile.
+     */
+    public static class NEIGHBOURS {
+        public static final int TOP_LEFT = 1, TOP = 1 << 1, TOP_RIGHT = 1 << 2, LEFT = 1 << 3, RIGHT = 1 << 4, BOTTOM_LEFT = 1 << 5,
+                BOTTOM = 1 << 6, BOTTOM_RIGHT = 1 << 7, BLEND = 1 << 8;
+        public static final int count = 1 << 9;
+    }
+
+    private static final int TERRAIN_VALUES = TERRAIN.count + 1;//includes OUT_OF_BOUNDS
+
+    //Rounded mod type (without the corner) keyed by the terrain of the tile, the side neighbour, the diagonal neighbour and the vertical neighbour
+    private static final byte[] sCornerMods = new byte[TERRAIN_VALUES * TERRAIN_VALUES * TERRAIN_VALUES * TERRAIN_VALUES];
+    //Mod of a paved line tile keyed by its NEIGHBOURS bits
+    private static final byte[] sPavedLineMods = new byte[NEIGHBOURS.count];
+
+    static {
+        for (int terrain = 0; terrain < TERRAIN_VALUES; terrain++) {
+            for (int side = 0; side < TERRAIN_VALUES; side++) {
+                for (int diagonal = 0; diagonal < TERRAIN_VALUES; diagonal++) {
+                    for (int vertical = 0; vertical < TERRAIN_VALUES; vertical++) {
+                        sCornerMods[getCornerKey(terrain, side, diagonal, vertical)] = (byte) resolveCornerMod(terrain, side, diagonal,
+                                vertical);
+                    }
+                }
+            }
+        }
+        for (int neighbours = 0; neighbours < NEIGHBOURS.count; neighbours++) {
+            sPavedLineMods[neighbours] = (byte) resolvePavedLineMod(neighbours);
+        }
+    }
+
+    private static int getCornerKey(int terrain, int side, int diagonal, int vertical) {
+        return ((terrain * TERRAIN_VALUES + side) * TERRAIN_VALUES + diagonal) * TERRAIN_VALUES + vertical;
+    }
+
+    /**
+     * Get the rounded mod for a corner of a blending tile.
+     *
+     * @param terrain
+     *            the terrain of the tile
+     * @param side
+     *            the terrain of the neighbour in the same row on the side of the corner (or OUT_OF_BOUNDS)
+     * @param diagonal
+     *            the terrain of the neighbour touching only the corner (or OUT_OF_BOUNDS)
+     * @param vertical
+     *            the terrain of the neighbour in the same column on the side of the corner (or OUT_OF_BOUNDS)
+     * @param corner
+     *            which corner of the tile (TERRAIN_MODS.TOP_LEFT etc.)
+     * @return the mod, or NONE if the corner is not rounded
+     */
+    public static int getCornerMod(int terrain, int side, int diagonal, int vertical, int corner) {
+        int mod = sCornerMods[getCornerKey(terrain, side, diagonal, vertical)];
+        return mod == TERRAIN_MODS.NONE ? mod : mod + corner;
+    }
+
+    /**
+     * Get the mod of a paved line tile.
+     *
+     * @param neighbours
+     *            the NEIGHBOURS bits of the tile
+     */
+    public static int getPavedLineMod(int neighbours) {
+        return sPavedLineMods[neighbours];
+    }
+
+    /**
+     * Rounding rule for a single corner: a corner is rounded with the side neighbour's base terrain if all 3 tiles touching the corner
+     * share that base type and it differs from the tile's own base type.
+     */
+    private static int resolveCornerMod(int terrain, int side, int diagonal, int vertical) {
+        if (terrain == OUT_OF_BOUNDS || side == OUT_OF_BOUNDS || diagonal == OUT_OF_BOUNDS || vertical == OUT_OF_BOUNDS)
+            return TERRAIN_MODS.NONE;
+        if (!TERRAIN_MODS.supportsStandardRounding(terrain))
+            return TERRAIN_MODS.NONE;
+        int blendTerrain = TERRAIN.getBaseType(side);
+        //Check that the surrounding terrain can be used for blending, and that blending is even needed (not same base type)
+        if (!TERRAIN_MODS.hasStandardRoundingMods(blendTerrain) || blendTerrain == TERRAIN.getBaseType(terrain))
+            return TERRAIN_MODS.NONE;
+        if (TERRAIN.getBaseType(diagonal) != blendTerrain || TERRAIN.getBaseType(vertical) != blendTerrain)
+            return TERRAIN_MODS.NONE;
+        return TERRAIN_MODS.getRoundedType(blendTerrain);
+    }
+
+    /**
+     * Rule for connecting a paved line tile with the adjacent paved line tiles.
+     * Blending tiles with a line continuing diagonally on the far side use the smoothed mods,
+     * and tiles without any adjacent paved lines use a generic straight line.
+     */
+    private static int resolvePavedLineMod(int neighbours) {
+        boolean blend = (neighbours & NEIGHBOURS.BLEND) != 0;
+        if ((neighbours & NEIGHBOURS.LEFT) != 0) {
+            if (blend) {
+                if ((neighbours & NEIGHBOURS.TOP_RIGHT) != 0) {
+                    return TERRAIN_MODS.SMOOTHED_PAVED_LINE + TERRAIN_MODS.HORIZONTAL * 4 + TERRAIN_MODS.TOP_RIGHT;
+                } else if ((neighbours & NEIGHBOURS.BOTTOM_RIGHT) != 0) {
+                    return TERRAIN_MODS.SMOOTHED_PAVED_LINE + TERRAIN_MODS.HORIZONTAL * 4 + TERRAIN_MODS.BOTTOM_RIGHT;
+                }
+            }
+            //Test for the two L shaped scenarios
+            if ((neighbours & NEIGHBOURS.TOP) != 0) {
+                return TERRAIN_MODS.ROUNDED_PAVED_LINE + TERRAIN_MODS.TOP_LEFT;
+            } else if ((neighbours & NEIGHBOURS.BOTTOM) != 0) {
+                return TERRAIN_MODS.ROUNDED_PAVED_LINE + TERRAIN_MODS.BOTTOM_LEFT;
+            } else {//Not L-shaped, so default to straight
+                return TERRAIN_MODS.STRAIGHT_PAVED_LINE + TERRAIN_MODS.HORIZONTAL;
+            }
+        } else if ((neighbours & NEIGHBOURS.RIGHT) != 0) {
+            if (blend) {
+                if ((neighbours & NEIGHBOURS.TOP_LEFT) != 0) {
+                    return TERRAIN_MODS.SMOOTHED_PAVED_LINE + TERRAIN_MODS.HORIZONTAL * 4 + TERRAIN_MODS.TOP_LEFT;
+                } else if ((neighbours & NEIGHBOURS.BOTTOM_LEFT) != 0) {
+                    return TERRAIN_MODS.SMOOTHED_PAVED_LINE + TERRAIN_MODS.HORIZONTAL * 4 + TERRAIN_MODS.BOTTOM_LEFT;
+                }
+            }
+            //Test for the two L shaped scenarios
+            if ((neighbours & NEIGHBOURS.TOP) != 0) {
+                return TERRAIN_MODS.ROUNDED_PAVED_LINE + TERRAIN_MODS.TOP_RIGHT;
+            } else if ((neighbours & NEIGHBOURS.BOTTOM) != 0) {
+                return TERRAIN_MODS.ROUNDED_PAVED_LINE + TERRAIN_MODS.BOTTOM_RIGHT;
+            } else {//Not L-shaped, so default to straight
+                return TERRAIN_MODS.STRAIGHT_PAVED_LINE + TERRAIN_MODS.HORIZONTAL;
+            }
+        } else if ((neighbours & NEIGHBOURS.TOP) != 0) {
+            if (blend) {
+                if ((neighbours & NEIGHBOURS.BOTTOM_LEFT) != 0) {
+                    return TERRAIN_MODS.SMOOTHED_PAVED_LINE + TERRAIN_MODS.VERTICAL * 4 + TERRAIN_MODS.BOTTOM_LEFT;
+                } else if ((neighbours & NEIGHBOURS.BOTTOM_RIGHT) != 0) {
+                    return TERRAIN_MODS.SMOOTHED_PAVED_LINE + TERRAIN_MODS.VERTICAL * 4 + TERRAIN_MODS.BOTTOM_RIGHT;
+                }
+            }
+            //L-shaped scenario would have been caught prior, so default to straight
+            return TERRAIN_MODS.STRAIGHT_PAVED_LINE + TERRAIN_MODS.VERTICAL;
+        } else if ((neighbours & NEIGHBOURS.BOTTOM) != 0) {
+            if (blend) {
+                if ((neighbours & NEIGHBOURS.TOP_LEFT) != 0) {
+                    return TERRAIN_MODS.SMOOTHED_PAVED_LINE + TERRAIN_MODS.VERTICAL * 4 + TERRAIN_MODS.TOP_LEFT;
+                } else if ((neighbours & NEIGHBOURS.TOP_RIGHT) != 0) {
+                    return TERRAIN_MODS.SMOOTHED_PAVED_LINE + TERRAIN_MODS.VERTICAL * 4 + TERRAIN_MODS.TOP_RIGHT;
+                }
+            }
+            //L-shaped scenario would have been caught prior, so default to straight
+            return TERRAIN_MODS.STRAIGHT_PAVED_LINE + TERRAIN_MODS.VERTICAL;
+        } else {//There are no adjacent paved lines to connect to, so just draw a generic one
+            return TERRAIN_MODS.STRAIGHT_PAVED_LINE;
+        }
+    }
+}
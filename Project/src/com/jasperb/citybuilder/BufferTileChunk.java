@@ -0,0 +1,105 @@
+package com.jasperb.citybuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.jasperb.citybuilder.util.FileStreamUtils;
+
+/**
+ * Chunk that keeps its tiles in a direct (off-heap) buffer laid out exactly like the saved image of a chunk,
+ * so that the tiles are out of reach of the garbage collector and can be written to and read from a file without conversion.
+ */
+class BufferTileChunk extends TileChunk {
+    private ByteBuffer mTiles = ByteBuffer.allocateDirect(IMAGE_SIZE);
+
+    public BufferTileChunk() {
+        for (int i = 0; i < Constant.CHUNK_AREA; i++) {
+            mTiles.put(IMAGE_TERRAIN_OFFSET + i, DEFAULT_TERRAIN);
+            mTiles.put(IMAGE_MOD_OFFSET + i, DEFAULT_MOD);
+            mTiles.put(IMAGE_BLEND_OFFSET + i, DEFAULT_BLEND);
+            mTiles.putInt(IMAGE_OBJECT_OFFSET + i * 4, DEFAULT_OBJECT_ID);
+        }
+    }
+
+    @Override
+    public byte getTerrain(int index) {
+        return mTiles.get(IMAGE_TERRAIN_OFFSET + index);
+    }
+
+    @Override
+    public void setTerrain(int index, byte terrain) {
+        mTiles.put(IMAGE_TERRAIN_OFFSET + index, terrain);
+    }
+
+    @Override
+    public byte getMod(int index, int modIndex) {
+        byte firstMod = mTiles.get(IMAGE_MOD_OFFSET + index);
+        if (modIndex == 0 || firstMod == DEFAULT_MOD)
+            return firstMod;
+        return getExtraMod(index, modIndex);
+    }
+
+    @Override
+    public void setMod(int index, int modIndex, byte mod) {
+        if (modIndex == 0) {
+            mTiles.put(IMAGE_MOD_OFFSET + index, mod);
+        } else {
+            setExtraMod(index, modIndex, mod);
+        }
+    }
+
+    @Override
+    public byte getBlend(int index) {
+        return mTiles.get(IMAGE_BLEND_OFFSET + index);
+    }
+
+    @Override
+    public void setBlend(int index, byte blend) {
+        mTiles.put(IMAGE_BLEND_OFFSET + index, blend);
+    }
+
+    @Override
+    public int getObjectID(int index) {
+        return mTiles.getInt(IMAGE_OBJECT_OFFSET + index * 4);
+    }
+
+    @Override
+    public void setObjectID(int index, int id) {
+        mTiles.putInt(IMAGE_OBJECT_OFFSET + index * 4, id);
+    }
+
+    @Override
+    public void writeImage(FileStreamUtils stream, ByteBuffer image) throws IOException {
+        //The tiles are already in the saved layout, so write them out directly
+        ByteBuffer tiles = mTiles.duplicate();
+        tiles.clear();
+        stream.write(tiles);
+    }
+
+    @Override
+    public void getImage(ByteBuffer image) {
+        ByteBuffer tiles = mTiles.duplicate();
+        tiles.clear();
+        image.clear();
+        image.put(tiles);
+        image.flip();
+    }
+
+    @Override
+    public void setImage(ByteBuffer image) {
+        ByteBuffer tiles = image.duplicate();
+        tiles.clear();
+        tiles.limit(IMAGE_SIZE);
+        mTiles.clear();
+        mTiles.put(tiles);
+        mTiles.clear();
+    }
+
+    @Override
+    public void read(FileStreamUtils stream, ByteBuffer image) throws IOException {
+        mTiles.clear();
+        stream.readFully(mTiles);
+        mTiles.clear();
+        readExtraMods(stream);
+    }
+}
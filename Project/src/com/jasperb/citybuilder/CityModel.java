@@ -3,15 +3,33 @@
  */
 package com.jasperb.citybuilder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import android.util.Log;
 
+import com.jasperb.citybuilder.AutotileTables.NEIGHBOURS;
 import com.jasperb.citybuilder.Constant.OBJECTS;
 import com.jasperb.citybuilder.Constant.TERRAIN;
 import com.jasperb.citybuilder.Constant.TERRAIN_MODS;
 import com.jasperb.citybuilder.util.FileStreamUtils;
+import com.jasperb.citybuilder.util.TerrainEdit;
 
 /**
  * @author Jasper
@@ -25,16 +43,15 @@ public class CityModel {
 
     /**
      * Represents a slice of the image of an object.
-     * Can be used to create a linked list of slices.
+     * The model itself keeps its slices in an ObjectSliceStore, this is just a copy of one of them.
      */
     public class ObjectSlice {
-        public short row, col;//maximum row and minimum column of the slice (not the object)
-        public short id;//id of the object
-        public byte type;//object type
+        public int row, col;//maximum row and minimum column of the slice (not the object)
+        public int id;//id of the object
+        public int type;//object type
         public byte sliceIndex;//0-based, indicates which slice it is
-        public ObjectSlice next = null;
 
-        public ObjectSlice(short row, short col, short id, byte type, byte sliceIndex) {
+        public ObjectSlice(int row, int col, int id, int type, byte sliceIndex) {
             this.row = row;
             this.col = col;
             this.id = id;
@@ -55,10 +72,10 @@ public class CityModel {
          * @throws IOException
          */
         public void write(FileStreamUtils stream) throws IOException {
-            stream.write(row);
-            stream.write(col);
-            stream.write(id);
-            stream.write(type);
+            stream.writeVarInt(row);
+            stream.writeVarInt(col);
+            stream.writeVarInt(id);
+            stream.write((byte) type);
             stream.write(sliceIndex);
         }
 
@@ -66,88 +83,457 @@ public class CityModel {
          * Fill the slice according to data read from a stream
          * 
          * @param stream
+         * @throws IOException
+         */
+        public void read(FileStreamUtils stream) throws IOException {
+            row = stream.readVarInt();
+            col = stream.readVarInt();
+            id = stream.readVarInt();
+            type = stream.readByte() & 0xFF;
+            sliceIndex = stream.readByte();
+        }
+
+        /**
+         * Fill the slice according to data read from a stream saved before version 4, which used shorts instead of variable length ints
+         * 
+         * @param stream
          * @return true if successfully read, false if EOF or -1 (which indicates the end of slices)
          * @throws IOException
          */
-        public boolean read(FileStreamUtils stream) throws IOException {
+        public boolean readLegacy(FileStreamUtils stream) throws IOException {
             row = stream.readShort();
             if (row == -1)
                 return false;
             col = stream.readShort();
             id = stream.readShort();
-            type = stream.readByte();
+            type = stream.readByte() & 0xFF;
             sliceIndex = stream.readByte();
             return true;
         }
     }
 
+    //A decoration, a rounded mod for each of the 4 corners and a paved line mod
+    private static final int MAX_DETERMINED_MODS = 6;
+    //Number of terrain mods stored per tile by version 1 saves
+    private static final int V1_MODS_PER_TILE = 5;
+    //Alignment of the chunk images within a save, so that they can be mapped
+    private static final int PAGE_SIZE = 4096;
+    //Difference between the seeds of neighbouring generation bands (the golden ratio, to spread the seeds out)
+    private static final long GENERATION_SEED_STEP = 0x9E3779B97F4A7C15L;
+    //How long the worker threads are kept once they have nothing left to do (in seconds)
+    private static final long WORKER_KEEP_ALIVE = 30;
+
+    private static ThreadPoolExecutor sWorkers = null;//generates and compresses city models in parallel, see getWorkers
+
     private int mWidth, mHeight;//dimensions of the world
-    private byte[][] mTerrainMap = null;//tile types of the world 
-    private byte[][] mTerrainModMap;//terrain mods of the world
-    private byte[][] mTerrainBlend;//whether the tile is set to blend with neighbouring tiles
-    private short[][] mObjectMap;//ID of the object covering the tile
-    private boolean[] mUsedObjectIDs;//List of used object IDs. Not thread-safe (should only be read/written to by UI thread)
-    private ObjectSlice mObjectList = null;//Linked list of object slices (sorted in the order they should be drawn)
-    private short mNumObjects = 0;//number of existing objects
+    private int mChunkColumns, mChunkRows;//dimensions of the world in chunks
+    private TileChunk[] mChunks = null;//chunks of tiles (column by column), null until a tile within the chunk is written to
+    private boolean[] mSharedChunks;//true if a chunk (same order as mChunks) may be shared with a snapshot, so must be copied to be written to
+    private int mTileStorage = Constant.DEFAULT_TILE_STORAGE;//TILE_STORAGE layout of new chunks
+    private int mVersion = 0;//incremented whenever the model changes
+    private int[] mChunkVersions;//value of mVersion when each chunk (same order as mChunks) last changed
+    private boolean mLazyMods = Constant.DEFAULT_LAZY_TERRAIN_MODS;//if true, terrain mods are only determined once they are read
+    private long[][] mStaleMods;//bit per tile (same order as within a chunk) set if its mods must be determined before reading, null if none
+    private int[] mStaleModCounts;//number of bits set in each mStaleMods entry
+    private ObjectIDAllocator mObjectIDs;//Used object IDs. Not thread-safe (should only be read/written to by UI thread)
+    private int[] mObjectRows, mObjectCols;//minimum row and column covered by each object (by ID), grown along with mObjectIDs
+    private short[] mObjectTypes;//type of each object (by ID), OBJECTS.NONE if there is no object with that ID
+    private ObjectSliceStore mObjectSlices;//Object slices bucketed by column (sorted in the order they should be drawn)
+    private OccupancyMap mOccupancy;//Tiles covered by objects
+    private byte[] mModBuffer = new byte[MAX_DETERMINED_MODS];//scratch space for determining terrain mods
+    private int[] mMovedSlices = new int[0];//scratch space for the handles of the slices of an object being moved
+    private Random mRandom = new Random();//random number generator for terrain decorations of edited tiles
+    //Scratch space for applyTerrainEdits, by chunk like mStaleMods (allocated on first use and resized with the chunk table, entries are null between batches)
+    private long[][] mEditedTiles;//bit per tile written by the batch
+    private long[][] mAffectedTiles;//bit per tile whose mods the batch may change (the written tiles and their neighbours)
+    private int[] mAffectedChunks = new int[16];//indices of the chunks with an mAffectedTiles entry
 
-    @SuppressWarnings("unused")
-    private CityModel() {}// Prevent constructing without a width and height
+    private CityModel() {}// Prevent constructing without a width and height (other than for snapshots)
 
     public CityModel(int width, int height) {
-        Log.v(TAG, "Create City: " + width + "x" + height);
-        mWidth = width;
-        mHeight = height;
+        this(width, height, Constant.DEFAULT_TILE_STORAGE);
+    }
+
+    public CityModel(int width, int height, int tileStorage) {
+        this(width, height, tileStorage, new Random().nextLong());
+    }
 
-        // Draw thread processes by column, so keep data in a single column close in memory
-        mTerrainMap = new byte[mWidth][mHeight];
-        mObjectMap = new short[mWidth][mHeight];
-        mUsedObjectIDs = new boolean[Constant.OBJECT_LIMIT];
-        Arrays.fill(mUsedObjectIDs, false);
+    /**
+     * Create a new randomly generated city model.
+     * The model is generated in bands of chunk columns on all available cores, and the same seed always generates the same model.
+     * 
+     * @param width
+     * @param height
+     * @param tileStorage
+     *            the TILE_STORAGE layout to keep the tiles in
+     * @param seed
+     *            the seed for generating the terrain
+     */
+    public CityModel(int width, int height, int tileStorage, long seed) {
+        Log.v(TAG, "Create City: " + width + "x" + height + " seed " + seed);
+        mTileStorage = tileStorage;
+        allocate(width, height);
 
-        // Try to be clever with memory by keeping all of the terrain mods close in memory
-        mTerrainModMap = new byte[mWidth][mHeight * Constant.MAX_NUMBER_OF_TERRAIN_MODS];
-        mTerrainBlend = new byte[mWidth][mHeight];
+        ExecutorService executor = getWorkers();
+        //Each band is a single column of chunks, so that no two bands write to the same chunk,
+        //and so that the bands (and the random values used for each) do not depend on the number of cores
+        List<Callable<Void>> terrainTasks = new ArrayList<Callable<Void>>(mChunkColumns);
+        List<Callable<Void>> modTasks = new ArrayList<Callable<Void>>(mChunkColumns);
+        for (int chunkCol = 0; chunkCol < mChunkColumns; chunkCol++) {
+            final int firstCol = chunkCol << Constant.CHUNK_SIZE_SHIFT;
+            final int lastCol = Math.min(firstCol + Constant.CHUNK_SIZE, mWidth) - 1;
+            final Random random = new Random(seed + chunkCol * GENERATION_SEED_STEP);
+            terrainTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    generateTerrain(firstCol, lastCol, random);
+                    return null;
+                }
+            });
+            //Mods depend on the terrain of neighbouring bands, so they can only be determined once all of the terrain exists
+            modTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    byte[] mods = new byte[MAX_DETERMINED_MODS];
+                    for (int col = firstCol; col <= lastCol; col++) {
+                        for (int row = 0; row < mHeight; row++) {
+                            determineTerrainMods(row, col, mods);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(executor, terrainTasks);
+        if (mLazyMods) {
+            markModsStale(0, 0, mHeight - 1, mWidth - 1);
+        } else {
+            runAll(executor, modTasks);
+        }
+        compactChunks(0, 0, mHeight - 1, mWidth - 1);
+    }
 
-        // Fill the terrain with random-ish tiles
-        for (int col = 0; col < mWidth; col++) {
+    /**
+     * Fill a band of columns with random-ish terrain and terrain decorations.
+     * 
+     * @param firstCol
+     * @param lastCol
+     * @param random
+     *            the random number generator of the band
+     */
+    private void generateTerrain(int firstCol, int lastCol, Random random) {
+        for (int col = firstCol; col <= lastCol; col++) {
             for (int row = 0; row < mHeight; row++) {
-                mTerrainMap[col][row] = TERRAIN.GRASS;
-                mTerrainMap[col][row] = (byte) (Math.random() * (TERRAIN.count + 3));
-                if (mTerrainMap[col][row] >= TERRAIN.count) {
+                int terrain = random.nextInt(TERRAIN.count + 3);
+                if (terrain >= TERRAIN.count) {
                     if (row == 0) {
-                        mTerrainMap[col][row] = (byte) (Math.random() * TERRAIN.count);
+                        terrain = random.nextInt(TERRAIN.count);
                     } else {
-                        mTerrainMap[col][row] = mTerrainMap[col][row - 1];
+                        terrain = getTerrain(row - 1, col);
                     }
                 }
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS] = TERRAIN_MODS.NONE;
-                mTerrainBlend[col][row] = 1;
-                mObjectMap[col][row] = -1;
+                getWritableChunk(row, col).setTerrain(TileChunk.getTileIndex(row, col), (byte) terrain);
             }
         }
-
-        // Determine terrain mods and randomly create terrain decorations
-        for (int col = 0; col < mWidth; col++) {
+        for (int col = firstCol; col <= lastCol; col++) {
             for (int row = 0; row < mHeight; row++) {
-                generateTerrainDecorations(row, col);
-                determineTerrainMods(row, col);
+                generateTerrainDecorations(row, col, random);
             }
         }
     }
 
+    /**
+     * Get the pool of worker threads (one per core) shared by everything that generates or saves city models in parallel.
+     * The pool is created on first use, and its threads are daemons that go away while there is nothing to do,
+     * rather than a new set of threads being started for every autosave.
+     */
+    private static synchronized ExecutorService getWorkers() {
+        if (sWorkers == null) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            sWorkers = new ThreadPoolExecutor(cores, cores, WORKER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "CityModel worker");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sWorkers.allowCoreThreadTimeOut(true);
+        }
+        return sWorkers;
+    }
+
+    /**
+     * Run tasks on an executor and wait for all of them to finish.
+     * 
+     * @param executor
+     * @param tasks
+     */
+    private static void runAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating the city", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to generate the city", e.getCause());
+        }
+    }
+
+    /**
+     * Run tasks reading or writing a saved city model on an executor and wait for all of them to finish.
+     * 
+     * @param executor
+     * @param tasks
+     * @throws IOException
+     *             if any of the tasks failed
+     */
+    private static void runAllOrThrow(ExecutorService executor, List<Callable<Void>> tasks) throws IOException {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while saving or restoring the city");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Failed to save or restore the city", e.getCause());
+        }
+    }
+
     /**
      * Create a city model from a stream/saved city model
      * 
      * @param stream
      */
     public CityModel(FileStreamUtils stream) {
-        if (!restore(stream)) {
+        this(stream, true);
+    }
+
+    /**
+     * Create a city model from a stream/saved city model
+     * 
+     * @param stream
+     * @param closeStream
+     *            false to leave the stream open, positioned after the model
+     */
+    public CityModel(FileStreamUtils stream, boolean closeStream) {
+        if (!restore(stream, closeStream)) {
             mWidth = 0;
             mHeight = 0;
         }
         Log.v(TAG, "Create City: " + mWidth + "x" + mHeight);
     }
 
+    /**
+     * Allocate the (empty) chunk table and object ID list for a city model of the given dimensions.
+     * Chunks themselves are only allocated once a tile within them is written to.
+     * 
+     * @param width
+     * @param height
+     */
+    private void allocate(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mChunkColumns = (width + Constant.CHUNK_SIZE - 1) >> Constant.CHUNK_SIZE_SHIFT;
+        mChunkRows = (height + Constant.CHUNK_SIZE - 1) >> Constant.CHUNK_SIZE_SHIFT;
+        mChunks = new TileChunk[mChunkColumns * mChunkRows];
+        mSharedChunks = new boolean[mChunkColumns * mChunkRows];
+        mChunkVersions = new int[mChunkColumns * mChunkRows];
+        mStaleMods = new long[mChunkColumns * mChunkRows][];
+        mStaleModCounts = new int[mChunkColumns * mChunkRows];
+        mObjectIDs = new ObjectIDAllocator(Constant.INITIAL_OBJECT_CAPACITY, Constant.OBJECT_LIMIT);
+        mObjectRows = new int[0];
+        mObjectCols = new int[0];
+        mObjectTypes = new short[0];
+        growObjectArrays();
+        mObjectSlices = new ObjectSliceStore(width);
+        mOccupancy = new OccupancyMap(width, height);
+    }
+
+    /**
+     * Get the chunk containing the specified tile.
+     * 
+     * @param row
+     * @param col
+     * @return the chunk, or null if no tile within the chunk has been written to
+     */
+    private TileChunk getChunk(int row, int col) {
+        return mChunks[(col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT)];
+    }
+
+    /**
+     * Get the chunk containing the specified tile, allocating it if necessary, and copying it if it is shared with a snapshot.
+     * All writes to a chunk must go through this.
+     * 
+     * @param row
+     * @param col
+     */
+    private TileChunk getWritableChunk(int row, int col) {
+        int index = (col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT);
+        TileChunk chunk = mChunks[index];
+        if (chunk == null) {
+            chunk = TileChunk.create(mTileStorage);
+            mChunks[index] = chunk;
+            return chunk;
+        }
+        if (chunk.getExpandedChunk() != null) {
+            //Stop passing every access through a uniform or mapped chunk once it has been expanded
+            chunk = chunk.getExpandedChunk();
+            mChunks[index] = chunk;
+        }
+        if (mSharedChunks[index]) {
+            chunk = chunk.copy(mTileStorage);
+            mChunks[index] = chunk;
+            mSharedChunks[index] = false;
+        }
+        return chunk;
+    }
+
+    /**
+     * Get the chunk containing the specified tile in order to write a value to it.
+     * Writing a tile's default value into a chunk that was never allocated changes nothing, so it is not allocated in that case.
+     * 
+     * @param row
+     * @param col
+     * @param isDefault
+     *            true if the value to be written is the default value for an unallocated chunk
+     * @return the chunk, or null if there is no need to write the value
+     */
+    private TileChunk getChunkForWrite(int row, int col, boolean isDefault) {
+        if (isDefault && getChunk(row, col) == null) {
+            return null;
+        } else {
+            return getWritableChunk(row, col);
+        }
+    }
+
+    /**
+     * Record that the tiles of a region have changed by stamping their chunks with a new version.
+     * 
+     * @param minRow
+     * @param minCol
+     * @param maxRow
+     * @param maxCol
+     */
+    private void markChanged(int minRow, int minCol, int maxRow, int maxCol) {
+        mVersion++;
+        int lastChunkCol = Math.min(maxCol, mWidth - 1) >> Constant.CHUNK_SIZE_SHIFT;
+        int lastChunkRow = Math.min(maxRow, mHeight - 1) >> Constant.CHUNK_SIZE_SHIFT;
+        for (int chunkCol = Math.max(minCol, 0) >> Constant.CHUNK_SIZE_SHIFT; chunkCol <= lastChunkCol; chunkCol++) {
+            for (int chunkRow = Math.max(minRow, 0) >> Constant.CHUNK_SIZE_SHIFT; chunkRow <= lastChunkRow; chunkRow++) {
+                mChunkVersions[chunkCol * mChunkRows + chunkRow] = mVersion;
+            }
+        }
+    }
+
+    /**
+     * Get the current version of the model, which increases with every change to it.
+     * Consumers that cache anything derived from the model can hold on to this value and later ask what changed since then.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Get the version of the model at which the chunk containing the specified tile last changed.
+     * All tiles of a chunk (CHUNK_SIZE x CHUNK_SIZE tiles, aligned to multiples of CHUNK_SIZE) share one version.
+     * 
+     * @param row
+     *            the row of the tile
+     * @param col
+     *            the column of the tile
+     */
+    public int getChunkVersion(int row, int col) {
+        return mChunkVersions[(col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT)];
+    }
+
+    /**
+     * Check whether any tile of a region (or an object covering it) may have changed since a given version of the model.
+     * Changes are tracked per chunk, so tiles sharing a chunk with a changed tile count as changed as well.
+     * 
+     * @param version
+     *            a value previously returned by getVersion
+     * @param minRow
+     * @param minCol
+     * @param maxRow
+     * @param maxCol
+     * @return true if the region may have changed
+     */
+    public boolean hasChangedSince(int version, int minRow, int minCol, int maxRow, int maxCol) {
+        int lastChunkCol = Math.min(maxCol, mWidth - 1) >> Constant.CHUNK_SIZE_SHIFT;
+        int lastChunkRow = Math.min(maxRow, mHeight - 1) >> Constant.CHUNK_SIZE_SHIFT;
+        for (int chunkCol = Math.max(minCol, 0) >> Constant.CHUNK_SIZE_SHIFT; chunkCol <= lastChunkCol; chunkCol++) {
+            for (int chunkRow = Math.max(minRow, 0) >> Constant.CHUNK_SIZE_SHIFT; chunkRow <= lastChunkRow; chunkRow++) {
+                if (mChunkVersions[chunkCol * mChunkRows + chunkRow] > version)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the chunks containing the tiles of a region with uniform chunks wherever all of their tiles look the same.
+     * 
+     * @param minRow
+     * @param minCol
+     * @param maxRow
+     * @param maxCol
+     */
+    private void compactChunks(int minRow, int minCol, int maxRow, int maxCol) {
+        for (int chunkCol = minCol >> Constant.CHUNK_SIZE_SHIFT; chunkCol <= maxCol >> Constant.CHUNK_SIZE_SHIFT; chunkCol++) {
+            for (int chunkRow = minRow >> Constant.CHUNK_SIZE_SHIFT; chunkRow <= maxRow >> Constant.CHUNK_SIZE_SHIFT; chunkRow++) {
+                compactChunk(chunkCol * mChunkRows + chunkRow);
+            }
+        }
+    }
+
+    /**
+     * Replace a chunk with a uniform chunk (or no chunk at all) if all of its tiles within the city model have the same terrain and blend,
+     * no terrain mods and no objects.
+     * 
+     * @param index
+     *            index of the chunk
+     */
+    private void compactChunk(int index) {
+        if (mStaleMods[index] != null)
+            return;//the mods of some tiles are not known yet
+        TileChunk chunk = mChunks[index];
+        if (chunk == null)
+            return;
+        if (chunk.getExpandedChunk() != null) {
+            chunk = chunk.getExpandedChunk();
+            mChunks[index] = chunk;
+        } else if (chunk instanceof UniformTileChunk || chunk instanceof MappedTileChunk) {
+            return;//still uniform, or still unchanged since it was restored (checking it would read in the whole mapped image)
+        }
+
+        //Tiles of edge chunks that lie outside of the city model are never read, so they are ignored
+        int rows = Math.min(Constant.CHUNK_SIZE, mHeight - (index % mChunkRows) * Constant.CHUNK_SIZE);
+        int cols = Math.min(Constant.CHUNK_SIZE, mWidth - (index / mChunkRows) * Constant.CHUNK_SIZE);
+        byte terrain = chunk.getTerrain(0);
+        byte blend = chunk.getBlend(0);
+        for (int col = 0; col < cols; col++) {
+            for (int row = 0; row < rows; row++) {
+                int tile = TileChunk.getTileIndex(row, col);
+                if (chunk.getTerrain(tile) != terrain || chunk.getBlend(tile) != blend || chunk.getMod(tile, 0) != TileChunk.DEFAULT_MOD
+                        || chunk.getObjectID(tile) != TileChunk.DEFAULT_OBJECT_ID)
+                    return;
+            }
+        }
+        if (terrain == TileChunk.DEFAULT_TERRAIN && blend == TileChunk.DEFAULT_BLEND) {
+            mChunks[index] = null;
+        } else {
+            mChunks[index] = new UniformTileChunk(terrain, blend, mTileStorage);
+        }
+        mSharedChunks[index] = false;
+    }
+
     /**
      * @return width of the model in tiles
      */
@@ -172,7 +558,10 @@ public class CityModel {
      * @return the type of tile at the specified location
      */
     public byte getTerrain(int row, int col) {
-        return mTerrainMap[col][row];
+        TileChunk chunk = getChunk(row, col);
+        if (chunk == null)
+            return TileChunk.DEFAULT_TERRAIN;
+        return chunk.getTerrain(TileChunk.getTileIndex(row, col));
     }
 
     /**
@@ -185,7 +574,56 @@ public class CityModel {
      * @return the type of mod at the specified location and mod index
      */
     public byte getMod(int row, int col, int index) {
-        return mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + index];
+        resolveStaleMods(row, col);
+        return getStoredMod(row, col, index);
+    }
+
+    /**
+     * Get a terrain mod as currently stored, without determining the mods of the tile first if they are stale.
+     * 
+     * @param row
+     * @param col
+     * @param index
+     *            the mod index
+     */
+    private byte getStoredMod(int row, int col, int index) {
+        TileChunk chunk = getChunk(row, col);
+        if (chunk == null)
+            return TileChunk.DEFAULT_MOD;
+        return chunk.getMod(TileChunk.getTileIndex(row, col), index);
+    }
+
+    /**
+     * Check whether the tiles of the chunk containing the specified tile can all be drawn the same way,
+     * in which case the tiles do not have to be looked up individually.
+     * 
+     * @param row
+     *            the row of the tile
+     * @param col
+     *            the column of the tile
+     * @return the terrain of every tile in the chunk, or -1 if the tiles may differ
+     */
+    public int getUniformTerrain(int row, int col) {
+        if (mStaleMods[(col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT)] != null)
+            return -1;//the tiles may have mods once they are determined
+        TileChunk chunk = getChunk(row, col);
+        if (chunk == null)
+            return TileChunk.DEFAULT_TERRAIN;
+        return chunk.getUniformTerrain();
+    }
+
+    /**
+     * @param row
+     *            the row of the tile
+     * @param col
+     *            the column of the tile
+     * @return true if the tile is set to blend with neighbouring tiles
+     */
+    private boolean isBlended(int row, int col) {
+        TileChunk chunk = getChunk(row, col);
+        if (chunk == null)
+            return TileChunk.DEFAULT_BLEND != 0;
+        return chunk.getBlend(TileChunk.getTileIndex(row, col)) != 0;
     }
 
     /**
@@ -197,19 +635,25 @@ public class CityModel {
      *            the column of the tile
      * @return the id of building at the specified location
      */
-    public short getObjectID(int row, int col) {
-        return mObjectMap[col][row];
+    public int getObjectID(int row, int col) {
+        TileChunk chunk = getChunk(row, col);
+        if (chunk == null)
+            return TileChunk.DEFAULT_OBJECT_ID;
+        return chunk.getObjectID(TileChunk.getTileIndex(row, col));
     }
 
-    public ObjectSlice getObjectList() {
-        return mObjectList;
+    /**
+     * @return the object slices of the city model. Must not be modified.
+     */
+    public ObjectSliceStore getObjectSlices() {
+        return mObjectSlices;
     }
 
     /**
      * @return the number of objects in the city model.
      */
-    public short getNumberOfObjects() {
-        return mNumObjects;
+    public int getNumberOfObjects() {
+        return mObjectIDs.getCount();
     }
 
     /**
@@ -231,16 +675,21 @@ public class CityModel {
     public void setTerrain(int startRow, int startCol, int endRow, int endCol, int terrain, boolean blend) {
         for (int col = startCol; col <= endCol; col++) {
             for (int row = startRow; row <= endRow; row++) {
-                mTerrainMap[col][row] = (byte) terrain;
-                mTerrainBlend[col][row] = (byte) (blend ? 1 : 0);
-                generateTerrainDecorations(row, col);
+                TileChunk chunk = getWritableChunk(row, col);
+                int index = TileChunk.getTileIndex(row, col);
+                chunk.setTerrain(index, (byte) terrain);
+                chunk.setBlend(index, (byte) (blend ? 1 : 0));
+                generateTerrainDecorations(row, col, mRandom);
             }
         }
 
         // Determine terrain mods for all modified tiles and their neighbours
         for (int col = Math.max(startCol - 1, 0); col <= Math.min(endCol + 1, mWidth - 1); col++)
             for (int row = Math.max(startRow - 1, 0); row <= Math.min(endRow + 1, mHeight - 1); row++)
-                determineTerrainMods(row, col);
+                updateTerrainMods(row, col);
+
+        compactChunks(Math.max(startRow - 1, 0), Math.max(startCol - 1, 0), Math.min(endRow + 1, mHeight - 1), Math.min(endCol + 1, mWidth - 1));
+        markChanged(startRow - 1, startCol - 1, endRow + 1, endCol + 1);//neighbouring tiles may have had their mods changed
     }
 
     /**
@@ -253,392 +702,984 @@ public class CityModel {
      *            true if the terrain at this tile should use blending mods
      */
     public void setTerrain(int row, int col, int terrain, boolean blend) {
-        mTerrainMap[col][row] = (byte) terrain;
-        mTerrainBlend[col][row] = (byte) (blend ? 1 : 0);
-        generateTerrainDecorations(row, col);
+        TileChunk chunk = getWritableChunk(row, col);
+        int index = TileChunk.getTileIndex(row, col);
+        chunk.setTerrain(index, (byte) terrain);
+        chunk.setBlend(index, (byte) (blend ? 1 : 0));
+        generateTerrainDecorations(row, col, mRandom);
         for (int c = Math.max(col - 1, 0); c <= Math.min(col + 1, mWidth - 1); c++) {
             for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, mHeight - 1); r++) {
-                determineTerrainMods(r, c);
+                updateTerrainMods(r, c);
             }
         }
+        markChanged(row - 1, col - 1, row + 1, col + 1);//neighbouring tiles may have had their mods changed
     }
 
     /**
-     * Determine the terrain mods to be used for a specified tile based off the surrounding 8 tiles
+     * Seed the random terrain decorations of the edited tiles, so that applying the same edits to the same model after the same seed
+     * always gives the same decorations (e.g. when replaying a journal of the edits).
      * 
-     * @param row
-     * @param col
-     * @param overwriteDecorations
-     *            if true terrain decorations are overwritten
+     * @param seed
      */
-    private void determineTerrainMods(int row, int col) {
-        int terrain = mTerrainMap[col][row];
-        int modIndex = 0;
-        int blendTerrain;
+    public void setEditSeed(long seed) {
+        mRandom.setSeed(seed);
+    }
 
-        if (TERRAIN_MODS.isTerrainDecoration(mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex]))
-            modIndex++;
+    /**
+     * Apply a batch of terrain edits in order.
+     * Each distinct tile is written once (with the terrain of the last edit covering it), and the mods of every affected tile are then
+     * determined only once, so overlapping edits (such as those of a brush stroke) cost as much as the distinct tiles they cover.
+     * Only the chunks holding affected tiles are compacted and marked as changed, however far apart the edits are.
+     * 
+     * @param edits
+     *            the edits to apply, in the order they were made
+     */
+    public void applyTerrainEdits(List<TerrainEdit> edits) {
+        if (edits.isEmpty())
+            return;
+        if (mEditedTiles == null || mEditedTiles.length != mChunks.length) {//first batch, or the chunk table was reallocated by a load
+            mEditedTiles = new long[mChunks.length][];
+            mAffectedTiles = new long[mChunks.length][];
+        }
 
-        if (mTerrainBlend[col][row] != 0) {
-            if (TERRAIN_MODS.supportsStandardRounding(terrain)) {
-                if (col - 1 >= 0) {
-                    blendTerrain = TERRAIN.getBaseType(mTerrainMap[col - 1][row]);
-                    //Check that the surrounding terrain can be used for blending, and that blending is even needed (not same base type)
-                    if (TERRAIN_MODS.hasStandardRoundingMods(blendTerrain) && blendTerrain != TERRAIN.getBaseType(terrain)) {
-                        //Only blend the top left corner if all 3 tiles touching the corner are of the same base type
-                        if (row - 1 >= 0 && TERRAIN.getBaseType(mTerrainMap[col - 1][row - 1]) == blendTerrain
-                                && TERRAIN.getBaseType(mTerrainMap[col][row - 1]) == blendTerrain) {
-                            mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] =
-                                    (byte) (TERRAIN_MODS.getRoundedType(blendTerrain) + TERRAIN_MODS.TOP_LEFT);
-                            modIndex++;
-                        }
-                        //Only blend the bottom left corner if all 3 tiles touching the corner are of the same base type
-                        if (row + 1 < mHeight && TERRAIN.getBaseType(mTerrainMap[col - 1][row + 1]) == blendTerrain
-                                && TERRAIN.getBaseType(mTerrainMap[col][row + 1]) == blendTerrain) {
-                            mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] =
-                                    (byte) (TERRAIN_MODS.getRoundedType(blendTerrain) + TERRAIN_MODS.BOTTOM_LEFT);
-                            modIndex++;
-                        }
-                    }
+        //Going through the edits from last to first, the first edit to reach a tile is the one whose terrain it keeps
+        int affectedChunkCount = 0;
+        ListIterator<TerrainEdit> iterator = edits.listIterator(edits.size());
+        while (iterator.hasPrevious()) {
+            TerrainEdit edit = iterator.previous();
+            byte terrain = (byte) edit.getTerrain();
+            byte blend = (byte) (edit.getBlend() ? 1 : 0);
+            //Edits are clipped to the city model, as tiles outside of it would map onto tiles of other chunks
+            int startRow = Math.max(edit.getStartRow(), 0), startCol = Math.max(edit.getStartCol(), 0);
+            int endRow = Math.min(edit.getEndRow(), mHeight - 1), endCol = Math.min(edit.getEndCol(), mWidth - 1);
+            if (startRow > endRow || startCol > endCol)
+                continue;//entirely outside of the city model
+            for (int col = startCol; col <= endCol; col++) {
+                for (int row = startRow; row <= endRow; row++) {
+                    if (!markTile(mEditedTiles, row, col))
+                        continue;//already written by a later edit
+                    TileChunk chunk = getWritableChunk(row, col);
+                    int index = TileChunk.getTileIndex(row, col);
+                    chunk.setTerrain(index, terrain);
+                    chunk.setBlend(index, blend);
+                    generateTerrainDecorations(row, col, mRandom);
                 }
-                if (col + 1 < mWidth) {
-                    blendTerrain = TERRAIN.getBaseType(mTerrainMap[col + 1][row]);
-                    //Check that the surrounding terrain can be used for blending, and that blending is even needed (not same base type)
-                    if (TERRAIN_MODS.hasStandardRoundingMods(blendTerrain) && blendTerrain != TERRAIN.getBaseType(terrain)) {
-                        //Only blend the top right corner if all 3 tiles touching the corner are of the same base type
-                        if (row - 1 >= 0 && TERRAIN.getBaseType(mTerrainMap[col + 1][row - 1]) == blendTerrain
-                                && TERRAIN.getBaseType(mTerrainMap[col][row - 1]) == blendTerrain) {
-                            mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] =
-                                    (byte) (TERRAIN_MODS.getRoundedType(blendTerrain) + TERRAIN_MODS.TOP_RIGHT);
-                            modIndex++;
-                        }
-                        //Only blend the bottom right corner if all 3 tiles touching the corner are of the same base type
-                        if (row + 1 < mHeight && TERRAIN.getBaseType(mTerrainMap[col + 1][row + 1]) == blendTerrain
-                                && TERRAIN.getBaseType(mTerrainMap[col][row + 1]) == blendTerrain) {
-                            mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] =
-                                    (byte) (TERRAIN_MODS.getRoundedType(blendTerrain) + TERRAIN_MODS.BOTTOM_RIGHT);
-                            modIndex++;
-                        }
+            }
+
+            //The mods of the edited tiles and their neighbours may change
+            for (int col = Math.max(startCol - 1, 0); col <= Math.min(endCol + 1, mWidth - 1); col++) {
+                for (int row = Math.max(startRow - 1, 0); row <= Math.min(endRow + 1, mHeight - 1); row++) {
+                    int chunkIndex = (col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT);
+                    if (mAffectedTiles[chunkIndex] == null) {
+                        if (affectedChunkCount == mAffectedChunks.length)
+                            mAffectedChunks = Arrays.copyOf(mAffectedChunks, affectedChunkCount * 2);
+                        mAffectedChunks[affectedChunkCount++] = chunkIndex;
                     }
+                    markTile(mAffectedTiles, row, col);
                 }
             }
         }
 
-        //Paved line must always have a mod to indicate that it is a paved line        
-        if (terrain == TERRAIN.PAVED_LINE) {
-            if (setPavedLineMod(row, col, modIndex)) {
-                modIndex++;
-            } else {//if there is no adjacent paved lines to connect to, just draw a generic one
-                //If the limit on terrain mods is exceeded, just drop all of them in favour of the paved line
-                if (modIndex == Constant.MAX_NUMBER_OF_TERRAIN_MODS) {
-                    modIndex = 0;
+        //Every edited tile is also affected, so the affected chunks are the only ones with scratch space to clear
+        mVersion++;
+        for (int i = 0; i < affectedChunkCount; i++) {
+            int chunkIndex = mAffectedChunks[i];
+            int firstRow = (chunkIndex % mChunkRows) << Constant.CHUNK_SIZE_SHIFT;
+            int firstCol = (chunkIndex / mChunkRows) << Constant.CHUNK_SIZE_SHIFT;
+            long[] affected = mAffectedTiles[chunkIndex];
+            for (int word = 0; word < affected.length; word++) {
+                for (long bits = affected[word]; bits != 0; bits &= bits - 1) {
+                    int tile = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    updateTerrainMods(firstRow + (tile & (Constant.CHUNK_SIZE - 1)), firstCol + (tile >> Constant.CHUNK_SIZE_SHIFT));
                 }
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.STRAIGHT_PAVED_LINE;
-                modIndex++;
             }
+            mAffectedTiles[chunkIndex] = null;
+            mEditedTiles[chunkIndex] = null;
+            compactChunk(chunkIndex);
+            mChunkVersions[chunkIndex] = mVersion;
         }
-
-        if (modIndex < Constant.MAX_NUMBER_OF_TERRAIN_MODS)
-            mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.NONE;
-        else
-            assert (modIndex == Constant.MAX_NUMBER_OF_TERRAIN_MODS);
     }
 
     /**
-     * Determine which paved line mods make sense based off adjacent terrain paved line tiles.
-     * Note: this method does not supply a default paved line mod if there are no adjacent paved line tiles.
+     * Set the bit of a tile in a set of per chunk tile bitsets (such as mEditedTiles), allocating the bitset of its chunk if necessary.
      * 
+     * @param tiles
+     *            the bitsets, indexed by chunk
      * @param row
      * @param col
-     * @param modIndex
-     *            the current number of mods already assigned to the specified tile
-     * @return true if at least one adjacent paved line tile was found
-     */
-    private boolean setPavedLineMod(int row, int col, int modIndex) {
-        if (col - 1 >= 0 && mTerrainMap[col - 1][row] == TERRAIN.PAVED_LINE) {
-//            if (mBlend[col][row] && col + 1 < mWidth) {
-//                if (row - 1 >= 0 && mTerrainMap[col + 1][row - 1] == TERRAIN.PAVED_LINE) {
-//                    mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.SMOOTHED_PAVED_LINE
-//                            + TERRAIN_MODS.HORIZONTAL * 4 + TERRAIN_MODS.TOP_RIGHT;
-//                    return true;
-//                } else if (row + 1 < mHeight && mTerrainMap[col + 1][row + 1] == TERRAIN.PAVED_LINE) {
-//                    mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.SMOOTHED_PAVED_LINE
-//                            + TERRAIN_MODS.HORIZONTAL * 4 + TERRAIN_MODS.BOTTOM_RIGHT;
-//                    return true;
-//                }
-//            }
-            //Test for the two L shaped scenarios 
-            if (row - 1 >= 0 && mTerrainMap[col][row - 1] == TERRAIN.PAVED_LINE) {
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.ROUNDED_PAVED_LINE
-                        + TERRAIN_MODS.TOP_LEFT;
-            } else if (row + 1 < mHeight && mTerrainMap[col][row + 1] == TERRAIN.PAVED_LINE) {
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.ROUNDED_PAVED_LINE
-                        + TERRAIN_MODS.BOTTOM_LEFT;
-            } else {//Not L-shaped, so default to straight
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.STRAIGHT_PAVED_LINE
-                        + TERRAIN_MODS.HORIZONTAL;
-            }
-        } else if (col + 1 < mWidth && mTerrainMap[col + 1][row] == TERRAIN.PAVED_LINE) {
-//            if (mBlend[col][row] && col - 1 >= 0) {
-//                if (row - 1 >= 0 && mTerrainMap[col - 1][row - 1] == TERRAIN.PAVED_LINE) {
-//                    mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.SMOOTHED_PAVED_LINE
-//                            + TERRAIN_MODS.HORIZONTAL * 4 + TERRAIN_MODS.TOP_LEFT;
-//                    return true;
-//                } else if (row + 1 < mHeight && mTerrainMap[col - 1][row + 1] == TERRAIN.PAVED_LINE) {
-//                    mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.SMOOTHED_PAVED_LINE
-//                            + TERRAIN_MODS.HORIZONTAL * 4 + TERRAIN_MODS.BOTTOM_LEFT;
-//                    return true;
-//                }
-//            }
-            //Test for the two L shaped scenarios 
-            if (row - 1 >= 0 && mTerrainMap[col][row - 1] == TERRAIN.PAVED_LINE) {
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.ROUNDED_PAVED_LINE
-                        + TERRAIN_MODS.TOP_RIGHT;
-            } else if (row + 1 < mHeight && mTerrainMap[col][row + 1] == TERRAIN.PAVED_LINE) {
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.ROUNDED_PAVED_LINE
-                        + TERRAIN_MODS.BOTTOM_RIGHT;
-            } else {//Not L-shaped, so default to straight
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.STRAIGHT_PAVED_LINE
-                        + TERRAIN_MODS.HORIZONTAL;
-            }
-        } else if (row - 1 >= 0 && mTerrainMap[col][row - 1] == TERRAIN.PAVED_LINE) {
-//            if (mBlend[col][row] && row + 1 < mHeight) {
-//                if (col - 1 >= 0 && mTerrainMap[col - 1][row + 1] == TERRAIN.PAVED_LINE) {
-//                    mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.SMOOTHED_PAVED_LINE
-//                            + TERRAIN_MODS.VERTICAL * 4 + TERRAIN_MODS.BOTTOM_LEFT;
-//                    return true;
-//                } else if (col + 1 < mWidth && mTerrainMap[col + 1][row + 1] == TERRAIN.PAVED_LINE) {
-//                    mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.SMOOTHED_PAVED_LINE
-//                            + TERRAIN_MODS.VERTICAL * 4 + TERRAIN_MODS.BOTTOM_RIGHT;
-//                    return true;
-//                }
-//            }
-            //L-shaped scenario would have been caught prior, so default to straight 
-            mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.STRAIGHT_PAVED_LINE
-                    + TERRAIN_MODS.VERTICAL;
-        } else if (row + 1 < mHeight && mTerrainMap[col][row + 1] == TERRAIN.PAVED_LINE) {
-//            if (mBlend[col][row] && row - 1 >= 0) {
-//                if (col - 1 >= 0 && mTerrainMap[col - 1][row - 1] == TERRAIN.PAVED_LINE) {
-//                    mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.SMOOTHED_PAVED_LINE
-//                            + TERRAIN_MODS.VERTICAL * 4 + TERRAIN_MODS.TOP_LEFT;
-//                    return true;
-//                } else if (col + 1 < mWidth && mTerrainMap[col + 1][row - 1] == TERRAIN.PAVED_LINE) {
-//                    mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.SMOOTHED_PAVED_LINE
-//                            + TERRAIN_MODS.VERTICAL * 4 + TERRAIN_MODS.TOP_RIGHT;
-//                    return true;
-//                }
-//            }
-            //L-shaped scenario would have been caught prior, so default to straight 
-            mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS + modIndex] = TERRAIN_MODS.STRAIGHT_PAVED_LINE
-                    + TERRAIN_MODS.VERTICAL;
-        } else {
-            return false;
+     * @return true if the bit was not already set
+     */
+    private boolean markTile(long[][] tiles, int row, int col) {
+        int chunkIndex = (col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT);
+        long[] bits = tiles[chunkIndex];
+        if (bits == null) {
+            bits = new long[Constant.CHUNK_AREA / 64];
+            tiles[chunkIndex] = bits;
         }
+        int tile = TileChunk.getTileIndex(row, col);
+        if ((bits[tile >> 6] & (1L << tile)) != 0)
+            return false;
+        bits[tile >> 6] |= 1L << tile;
         return true;
     }
 
     /**
-     * Generate a random terrain decoration for a specific tile.
-     * Some terrain types do not have decorations.
-     * It is possible for some terrain types to randomly generate no terrain decoration.
+     * Use lazily determined terrain mods, so that edits only mark the mods of the affected tiles as stale
+     * and the mods of a tile are determined when they are first read (which for the most part is when the tile is first drawn).
      * 
-     * @param row
-     * @param col
+     * @param lazy
      */
-    private void generateTerrainDecorations(int row, int col) {
-        if (mTerrainMap[col][row] == TERRAIN.GRASS) {
-            int rand = (int) ((Math.random() * TERRAIN_MODS.GRASS_DECORATION_COUNT) * TERRAIN_MODS.GRASS_DECORATION_CHANCE);
-            if (rand < TERRAIN_MODS.GRASS_DECORATION_COUNT) {
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS] = (byte) (TERRAIN_MODS.GRASS_DECORATION + rand);
-            } else {
-                mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS] = TERRAIN_MODS.NONE;
-            }
-        } else {
-            mTerrainModMap[col][row * Constant.MAX_NUMBER_OF_TERRAIN_MODS] = TERRAIN_MODS.NONE;
-        }
+    public void setLazyMods(boolean lazy) {
+        if (!lazy)
+            resolveAllStaleMods();
+        mLazyMods = lazy;
+    }
+
+    public boolean isLazyMods() {
+        return mLazyMods;
     }
 
     /**
-     * Add an object to the model using an already allocated object ID
+     * Bring the terrain mods of a tile up to date after it or one of its neighbours changed.
      * 
      * @param row
      * @param col
-     * @param type
-     * @param id
      */
-    public void addObject(int row, int col, int type, int id) {
-        createObjectSlices(row, col, type, id);
-        for (int c = col; c < col + OBJECTS.objectNumColumns[type]; c++) {
-            for (int r = row; r < row + OBJECTS.objectNumRows[type]; r++) {
-                mObjectMap[c][r] = (short) id;
-            }
+    private void updateTerrainMods(int row, int col) {
+        if (mLazyMods) {
+            markModsStale(row, col, row, col);
+        } else {
+            determineTerrainMods(row, col, mModBuffer);
         }
     }
 
     /**
-     * Return an unused object ID and mark it as used
+     * Mark the terrain mods of a region of tiles as needing to be determined before they are read.
+     * 
+     * @param minRow
+     * @param minCol
+     * @param maxRow
+     * @param maxCol
      */
-    public int allocateNewObjectID() {
-        if (mNumObjects == Constant.OBJECT_LIMIT)
-            return -1;
-        int i = 0;
-        for (; i <= mNumObjects; i++) {
-            if (!mUsedObjectIDs[i]) {
-                mUsedObjectIDs[i] = true;
-                mNumObjects++;
-                break;
+    private void markModsStale(int minRow, int minCol, int maxRow, int maxCol) {
+        for (int col = minCol; col <= maxCol; col++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                int chunkIndex = (col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT);
+                long[] stale = mStaleMods[chunkIndex];
+                if (stale == null) {
+                    stale = new long[Constant.CHUNK_AREA / 64];
+                    mStaleMods[chunkIndex] = stale;
+                }
+                int tile = TileChunk.getTileIndex(row, col);
+                if ((stale[tile >> 6] & (1L << tile)) == 0) {
+                    stale[tile >> 6] |= 1L << tile;
+                    mStaleModCounts[chunkIndex]++;
+                }
             }
         }
-
-        if (i == mNumObjects + 1) {
-            throw new IllegalStateException("There should be at least one free Object ID"); //This shouldn't be possible
-        } else {
-            return i;
-        }
-    }
-
-    /**
-     * Mark an object ID as unused
-     */
-    public void freeObjectID(int id) {
-        mUsedObjectIDs[id] = false;
-        mNumObjects--;
     }
 
     /**
-     * Create object slices for a new object and add them to the object list, sorted by order to draw in
+     * Determine the terrain mods of a tile if they are stale.
      * 
      * @param row
-     *            the minimum row covered by the new object
      * @param col
-     *            the minimum column covered by the new object
-     * @param type
-     *            the type of the new object
-     * @param id
-     *            the ID of the new object
      */
-    private void createObjectSlices(int row, int col, int type, int id) {
-        int sliceColumns = OBJECTS.getSliceWidth(type) / (Constant.TILE_WIDTH / 2);
-        int lastColumn = col + OBJECTS.objectNumColumns[type] - 1;
-        int sliceCount = OBJECTS.getSliceCount(type);
-        //Log.d(TAG, "NUM SLICES: " + sliceCount);
-        int sliceCol = col;
-        int sliceRow = row + OBJECTS.objectNumRows[type] - 1;
-        byte sliceIndex = 0;
-        ObjectSlice currentSlice = mObjectList, previousSlice = null;
-        while (currentSlice != null) {
-            //Log.d(TAG, "SLICE ANALYSIS: " + currentSlice.row + " :: " + currentSlice.col + " -- " + row + " :: " + sliceCol);
-            if (currentSlice.col > sliceCol || (currentSlice.col == sliceCol && currentSlice.row > row)) {
-                previousSlice = addObjectSlice(previousSlice, new ObjectSlice((short) sliceRow, (short) sliceCol, (short) id,
-                        (byte) type, sliceIndex));
-                sliceIndex++;
-                if (sliceIndex == sliceCount) {
-                    return;
-                } else {
-                    if (sliceCol == lastColumn) {
-                        break;
-                    } else {
-                        sliceCol += sliceColumns;
-                        if (sliceCol > lastColumn) {
-                            sliceCol = lastColumn;
-                        }
-                    }
-                }
-            } else {
-                previousSlice = currentSlice;
-                currentSlice = currentSlice.next;
+    private void resolveStaleMods(int row, int col) {
+        int chunkIndex = (col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT);
+        long[] stale = mStaleMods[chunkIndex];
+        if (stale == null)
+            return;
+        int tile = TileChunk.getTileIndex(row, col);
+        if ((stale[tile >> 6] & (1L << tile)) != 0) {
+            stale[tile >> 6] &= ~(1L << tile);
+            determineTerrainMods(row, col, mModBuffer);
+            if (--mStaleModCounts[chunkIndex] == 0) {
+                mStaleMods[chunkIndex] = null;
+                compactChunk(chunkIndex);//the last stale tile may have left the chunk uniform
             }
         }
+    }
 
-        while (sliceIndex < sliceCount) {
-            //Log.d(TAG, "APPEND SLICE: " + sliceIndex);
-            previousSlice = addObjectSlice(previousSlice, new ObjectSlice((short) sliceRow, (short) sliceCol, (short) id, (byte) type,
-                    sliceIndex));
-            sliceIndex++;
-            if (sliceCol != lastColumn) {
-                sliceCol += sliceColumns;
-                if (sliceCol > lastColumn) {
-                    sliceCol = lastColumn;
+    /**
+     * Determine the terrain mods of every tile whose mods are stale.
+     */
+    private void resolveAllStaleMods() {
+        for (int chunkIndex = 0; chunkIndex < mStaleMods.length; chunkIndex++) {
+            if (mStaleMods[chunkIndex] == null)
+                continue;
+            int firstRow = (chunkIndex % mChunkRows) << Constant.CHUNK_SIZE_SHIFT;
+            int firstCol = (chunkIndex / mChunkRows) << Constant.CHUNK_SIZE_SHIFT;
+            for (int col = firstCol; col < Math.min(firstCol + Constant.CHUNK_SIZE, mWidth); col++) {
+                for (int row = firstRow; row < Math.min(firstRow + Constant.CHUNK_SIZE, mHeight); row++) {
+                    resolveStaleMods(row, col);//compacts the chunk once its last stale tile is resolved
                 }
             }
         }
     }
 
     /**
-     * Add an object slice to the object linked list
+     * Determine the terrain mods to be used for a specified tile based off the surrounding 8 tiles
      * 
-     * @param node
-     *            the node to append the new slice after
-     * @param newSlice
-     *            the new slice to append to the list
-     * @return the new slice added
+     * @param row
+     * @param col
+     * @param mods
+     *            scratch space for the mods (of at least MAX_DETERMINED_MODS)
      */
-    private ObjectSlice addObjectSlice(ObjectSlice node, ObjectSlice newSlice) {
-        if (node == null) {
-            newSlice.next = mObjectList;
-            mObjectList = newSlice;
-        } else {
-            newSlice.next = node.next;
-            node.next = newSlice;
-        }
-        return newSlice;
-    }
+    private void determineTerrainMods(int row, int col, byte[] mods) {
+        int modIndex = 0;
+        boolean blend = isBlended(row, col);
 
-    /**
+        //Terrain of the surrounding tiles, with OUT_OF_BOUNDS for tiles outside of the model
+        int terrain = getTerrain(row, col);
+        int topLeft = getNeighbourTerrain(row - 1, col - 1), top = getNeighbourTerrain(row - 1, col), topRight = getNeighbourTerrain(row - 1,
+                col + 1);
+        int left = getNeighbourTerrain(row, col - 1), right = getNeighbourTerrain(row, col + 1);
+        int bottomLeft = getNeighbourTerrain(row + 1, col - 1), bottom = getNeighbourTerrain(row + 1, col), bottomRight = getNeighbourTerrain(
+                row + 1, col + 1);
+
+        mods[modIndex] = getStoredMod(row, col, modIndex);
+        if (TERRAIN_MODS.isTerrainDecoration(mods[modIndex]))
+            modIndex++;
+
+        if (blend) {
+            int mod;
+            if ((mod = AutotileTables.getCornerMod(terrain, left, topLeft, top, TERRAIN_MODS.TOP_LEFT)) != TERRAIN_MODS.NONE)
+                mods[modIndex++] = (byte) mod;
+            if ((mod = AutotileTables.getCornerMod(terrain, left, bottomLeft, bottom, TERRAIN_MODS.BOTTOM_LEFT)) != TERRAIN_MODS.NONE)
+                mods[modIndex++] = (byte) mod;
+            if ((mod = AutotileTables.getCornerMod(terrain, right, topRight, top, TERRAIN_MODS.TOP_RIGHT)) != TERRAIN_MODS.NONE)
+                mods[modIndex++] = (byte) mod;
+            if ((mod = AutotileTables.getCornerMod(terrain, right, bottomRight, bottom, TERRAIN_MODS.BOTTOM_RIGHT)) != TERRAIN_MODS.NONE)
+                mods[modIndex++] = (byte) mod;
+        }
+
+        //Paved line must always have a mod to indicate that it is a paved line
+        if (terrain == TERRAIN.PAVED_LINE) {
+            int neighbours = blend ? NEIGHBOURS.BLEND : 0;
+            if (topLeft == TERRAIN.PAVED_LINE)
+                neighbours |= NEIGHBOURS.TOP_LEFT;
+            if (top == TERRAIN.PAVED_LINE)
+                neighbours |= NEIGHBOURS.TOP;
+            if (topRight == TERRAIN.PAVED_LINE)
+                neighbours |= NEIGHBOURS.TOP_RIGHT;
+            if (left == TERRAIN.PAVED_LINE)
+                neighbours |= NEIGHBOURS.LEFT;
+            if (right == TERRAIN.PAVED_LINE)
+                neighbours |= NEIGHBOURS.RIGHT;
+            if (bottomLeft == TERRAIN.PAVED_LINE)
+                neighbours |= NEIGHBOURS.BOTTOM_LEFT;
+            if (bottom == TERRAIN.PAVED_LINE)
+                neighbours |= NEIGHBOURS.BOTTOM;
+            if (bottomRight == TERRAIN.PAVED_LINE)
+                neighbours |= NEIGHBOURS.BOTTOM_RIGHT;
+            mods[modIndex++] = (byte) AutotileTables.getPavedLineMod(neighbours);
+        }
+
+        setMods(row, col, mods, 0, modIndex);
+    }
+
+    /**
+     * Get the terrain of a tile that may lie outside of the model.
+     * 
+     * @param row
+     * @param col
+     * @return the terrain, or AutotileTables.OUT_OF_BOUNDS if the tile is outside of the model
+     */
+    private int getNeighbourTerrain(int row, int col) {
+        if (row < 0 || col < 0 || row >= mHeight || col >= mWidth)
+            return AutotileTables.OUT_OF_BOUNDS;
+        return getTerrain(row, col);
+    }
+
+    /**
+     * Replace all of the terrain mods of a tile.
+     * Nothing is written if the tile already has these mods, so uniform and shared chunks aren't expanded or copied needlessly.
+     * 
+     * @param row
+     * @param col
+     * @param mods
+     *            the new terrain mods for the tile
+     * @param offset
+     *            the index of the first mod in the array to use
+     * @param count
+     *            the number of mods in the array to use
+     */
+    private void setMods(int row, int col, byte[] mods, int offset, int count) {
+        int index = TileChunk.getTileIndex(row, col);
+        TileChunk chunk = getChunk(row, col);
+        if (chunk == null) {
+            if (count == 0)
+                return;
+        } else {
+            int same = 0;
+            while (same < count && chunk.getMod(index, same) == mods[offset + same])
+                same++;
+            if (same == count && chunk.getMod(index, count) == TileChunk.DEFAULT_MOD)
+                return;
+        }
+
+        chunk = getWritableChunk(row, col);
+        for (int i = 0; i < count; i++) {
+            chunk.setMod(index, i, mods[offset + i]);
+        }
+        chunk.setMod(index, count, TileChunk.DEFAULT_MOD);
+        if (count == 0)
+            chunk.setMod(index, 1, TileChunk.DEFAULT_MOD);//drop any mods the tile had after its first mod
+    }
+
+    /**
+     * Generate a random terrain decoration for a specific tile.
+     * Some terrain types do not have decorations.
+     * It is possible for some terrain types to randomly generate no terrain decoration.
+     * 
+     * @param row
+     * @param col
+     * @param random
+     */
+    private void generateTerrainDecorations(int row, int col, Random random) {
+        byte decoration = TERRAIN_MODS.NONE;
+        if (getTerrain(row, col) == TERRAIN.GRASS) {
+            int rand = random.nextInt(TERRAIN_MODS.GRASS_DECORATION_COUNT * TERRAIN_MODS.GRASS_DECORATION_CHANCE);
+            if (rand < TERRAIN_MODS.GRASS_DECORATION_COUNT) {
+                decoration = (byte) (TERRAIN_MODS.GRASS_DECORATION + rand);
+            }
+        }
+        TileChunk chunk = getChunkForWrite(row, col, decoration == TileChunk.DEFAULT_MOD);
+        if (chunk != null)
+            chunk.setMod(TileChunk.getTileIndex(row, col), 0, decoration);
+    }
+
+    /**
+     * Add an object to the model using an already allocated object ID
+     * 
+     * @param row
+     * @param col
+     * @param type
+     * @param id
+     */
+    public void addObject(int row, int col, int type, int id) {
+        createObjectSlices(row, col, type, id);
+        setObjectAnchor(id, row, col, type);
+        for (int c = col; c < col + OBJECTS.objectNumColumns[type]; c++) {
+            for (int r = row; r < row + OBJECTS.objectNumRows[type]; r++) {
+                getWritableChunk(r, c).setObjectID(TileChunk.getTileIndex(r, c), id);
+            }
+        }
+        mOccupancy.set(row, col, row + OBJECTS.objectNumRows[type] - 1, col + OBJECTS.objectNumColumns[type] - 1, true);
+        markChanged(row, col, row + OBJECTS.objectNumRows[type] - 1, col + OBJECTS.objectNumColumns[type] - 1);
+    }
+
+    /**
+     * Check whether a rectangle of tiles lies within the city model and isn't covered by any objects.
+     * 
+     * @param startRow
+     * @param startCol
+     * @param endRow
+     * @param endCol
+     */
+    public boolean isAreaFree(int startRow, int startCol, int endRow, int endCol) {
+        if (startRow < 0 || startCol < 0 || endRow >= mHeight || endCol >= mWidth)
+            return false;
+        return mOccupancy.countCovered(startRow, startCol, endRow, endCol) == 0;
+    }
+
+    /**
+     * Count the tiles covered by objects within a rectangle of tiles. Tiles outside of the city model are ignored.
+     * 
+     * @param startRow
+     * @param startCol
+     * @param endRow
+     * @param endCol
+     */
+    public int getCoveredTileCount(int startRow, int startCol, int endRow, int endCol) {
+        startRow = Math.max(startRow, 0);
+        startCol = Math.max(startCol, 0);
+        endRow = Math.min(endRow, mHeight - 1);
+        endCol = Math.min(endCol, mWidth - 1);
+        if (startRow > endRow || startCol > endCol)
+            return 0;
+        return mOccupancy.countCovered(startRow, startCol, endRow, endCol);
+    }
+
+    /**
+     * Check whether a batch of objects could be added to the model: each object must lie within the model on tiles
+     * that aren't covered by an existing object, and the objects must not overlap each other.
+     * 
+     * @param rows
+     *            the minimum row covered by each object
+     * @param cols
+     *            the minimum column covered by each object
+     * @param types
+     *            the type of each object
+     * @param count
+     *            the number of objects
+     */
+    public boolean canAddObjects(int[] rows, int[] cols, int[] types, int count) {
+        int tileCount = 0;
+        for (int i = 0; i < count; i++) {
+            tileCount += OBJECTS.objectNumRows[types[i]] * OBJECTS.objectNumColumns[types[i]];
+        }
+        int[] tiles = new int[tileCount];
+        int tile = 0;
+        for (int i = 0; i < count; i++) {
+            int lastRow = rows[i] + OBJECTS.objectNumRows[types[i]] - 1;
+            int lastCol = cols[i] + OBJECTS.objectNumColumns[types[i]] - 1;
+            if (!isAreaFree(rows[i], cols[i], lastRow, lastCol))
+                return false;
+            for (int c = cols[i]; c <= lastCol; c++) {
+                for (int r = rows[i]; r <= lastRow; r++) {
+                    tiles[tile++] = c * mHeight + r;
+                }
+            }
+        }
+        //The objects overlap if any tile is covered twice
+        Arrays.sort(tiles);
+        for (int i = 1; i < tileCount; i++) {
+            if (tiles[i] == tiles[i - 1])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add a batch of objects to the model using already allocated object IDs.
+     * Rather than inserting the slices of each object one by one, the new slices are sorted and merged into each column at once.
+     * Nothing is added unless all of the objects can be (see canAddObjects).
+     * 
+     * @param rows
+     *            the minimum row covered by each object
+     * @param cols
+     *            the minimum column covered by each object
+     * @param types
+     *            the type of each object
+     * @param ids
+     *            the ID of each object
+     * @param count
+     *            the number of objects
+     * @return true if the objects were added
+     */
+    public boolean addObjects(int[] rows, int[] cols, int[] types, int[] ids, int count) {
+        if (!canAddObjects(rows, cols, types, count))
+            return false;
+
+        //Sort the new slices by column, then by the minimum row of their object, then by the order they were created in
+        //(rows and columns fit in 12 bits, see MAX_CITY_MODEL_SIZE)
+        int sliceCount = 0;
+        for (int i = 0; i < count; i++) {
+            sliceCount += OBJECTS.getSliceCount(types[i]);
+        }
+        long[] keys = new long[sliceCount];
+        int[] sliceObjects = new int[sliceCount];
+        int[] sliceIndexes = new int[sliceCount];
+        int slice = 0;
+        for (int i = 0; i < count; i++) {
+            for (int sliceIndex = 0; sliceIndex < OBJECTS.getSliceCount(types[i]); sliceIndex++) {
+                long sliceCol = cols[i] + OBJECTS.getSliceColumnOffset(types[i], sliceIndex);
+                keys[slice] = (sliceCol << 51) | ((long) rows[i] << 39) | slice;
+                sliceObjects[slice] = i;
+                sliceIndexes[slice] = sliceIndex;
+                slice++;
+            }
+        }
+        Arrays.sort(keys);
+
+        //Merge each column's run of new slices into the column
+        int[] runObjectRows = new int[sliceCount], runRows = new int[sliceCount], runIds = new int[sliceCount];
+        int[] runTypes = new int[sliceCount], runSliceIndexes = new int[sliceCount];
+        for (int start = 0, end; start < sliceCount; start = end) {
+            int col = (int) (keys[start] >>> 51);
+            for (end = start; end < sliceCount && (int) (keys[end] >>> 51) == col; end++) {
+                int newSlice = (int) (keys[end] & ((1L << 39) - 1));
+                int object = sliceObjects[newSlice];
+                runObjectRows[end - start] = rows[object];
+                runRows[end - start] = rows[object] + OBJECTS.objectNumRows[types[object]] - 1;
+                runIds[end - start] = ids[object];
+                runTypes[end - start] = types[object];
+                runSliceIndexes[end - start] = sliceIndexes[newSlice];
+            }
+            mObjectSlices.insertAll(col, end - start, runObjectRows, runRows, runIds, runTypes, runSliceIndexes);
+        }
+
+        for (int i = 0; i < count; i++) {
+            setObjectAnchor(ids[i], rows[i], cols[i], types[i]);
+            int lastRow = rows[i] + OBJECTS.objectNumRows[types[i]] - 1;
+            int lastCol = cols[i] + OBJECTS.objectNumColumns[types[i]] - 1;
+            for (int c = cols[i]; c <= lastCol; c++) {
+                for (int r = rows[i]; r <= lastRow; r++) {
+                    getWritableChunk(r, c).setObjectID(TileChunk.getTileIndex(r, c), ids[i]);
+                }
+            }
+            mOccupancy.set(rows[i], cols[i], lastRow, lastCol, true);
+            markChanged(rows[i], cols[i], lastRow, lastCol);
+        }
+        return true;
+    }
+
+    /**
+     * Return an unused object ID and mark it as used
+     * 
+     * @return the ID, or -1 if the object limit has been reached
+     */
+    public int allocateNewObjectID() {
+        int id = mObjectIDs.allocate();
+        growObjectArrays();
+        return id;
+    }
+
+    /**
+     * Return several unused object IDs and mark them as used, e.g. for placing many objects at once
+     * 
+     * @param ids
+     *            filled with the new IDs
+     * @param count
+     *            the number of IDs needed
+     * @return true if successful, false (and no IDs are allocated) if the object limit would be exceeded
+     */
+    public boolean allocateNewObjectIDs(int[] ids, int count) {
+        if (!mObjectIDs.allocate(ids, count))
+            return false;
+        growObjectArrays();
+        return true;
+    }
+
+    /**
+     * Mark a specific object ID as used, e.g. when replaying an edit that was given the ID when it was first requested
+     * 
+     * @return true if the ID was unused, false if it was used or is out of range
+     */
+    public boolean reserveObjectID(int id) {
+        if (!mObjectIDs.reserve(id))
+            return false;
+        growObjectArrays();
+        return true;
+    }
+
+    /**
+     * Mark an object ID as unused
+     */
+    public void freeObjectID(int id) {
+        mObjectIDs.free(id);
+    }
+
+    /**
+     * Create object slices for a new object and add them to the object list, sorted by order to draw in
+     * 
+     * @param row
+     *            the minimum row covered by the new object
+     * @param col
+     *            the minimum column covered by the new object
+     * @param type
+     *            the type of the new object
+     * @param id
+     *            the ID of the new object
+     */
+    private void createObjectSlices(int row, int col, int type, int id) {
+        int sliceCount = OBJECTS.getSliceCount(type);
+        //Log.d(TAG, "NUM SLICES: " + sliceCount);
+        int sliceRow = row + OBJECTS.objectNumRows[type] - 1;
+        int lastSliceCol = -1, position = 0;
+        for (int sliceIndex = 0; sliceIndex < sliceCount; sliceIndex++) {
+            //Slices sharing the last column are kept together, the others go to their own column
+            int sliceCol = col + OBJECTS.getSliceColumnOffset(type, sliceIndex);
+            if (sliceCol != lastSliceCol) {
+                position = mObjectSlices.findInsertPosition(sliceCol, row);
+                lastSliceCol = sliceCol;
+            }
+            mObjectSlices.insert(position, sliceRow, sliceCol, id, type, sliceIndex);
+            position++;
+        }
+    }
+
+    /**
+     * Record where an object is, so that its slices can be found without searching
+     */
+    private void setObjectAnchor(int id, int row, int col, int type) {
+        mObjectRows[id] = row;
+        mObjectCols[id] = col;
+        mObjectTypes[id] = (short) type;
+    }
+
+    /**
+     * Grow the arrays indexed by object ID to cover every ID that mObjectIDs has room for
+     */
+    private void growObjectArrays() {
+        int capacity = mObjectIDs.getCapacity();
+        if (capacity > mObjectTypes.length) {
+            int oldCapacity = mObjectTypes.length;
+            mObjectRows = Arrays.copyOf(mObjectRows, capacity);
+            mObjectCols = Arrays.copyOf(mObjectCols, capacity);
+            mObjectTypes = Arrays.copyOf(mObjectTypes, capacity);
+            Arrays.fill(mObjectTypes, oldCapacity, capacity, (short) OBJECTS.NONE);
+        }
+    }
+
+    /**
      * Remove all object slices for a given ID from the object list
      * 
      * @param id
-     * @return the first object slice removed
+     * @return a copy of the first object slice removed, or null if there is no such object
      */
     public ObjectSlice removeObjectSlices(int id) {
-        ObjectSlice firstSlice = null;
-        ObjectSlice currentSlice = mObjectList, previousSlice = null;
-        int slicesRemoved = 0;
-        while (currentSlice != null) {
-            if (currentSlice.id == id) {
-                if (firstSlice == null)
-                    firstSlice = currentSlice;
-
-                currentSlice = removeObjectSlice(previousSlice);
-                slicesRemoved++;
-                if (slicesRemoved == OBJECTS.getSliceCount(firstSlice.type))
-                    break;
-            } else {
-                previousSlice = currentSlice;
-                currentSlice = currentSlice.next;
+        ObjectSlice firstSlice = getObjectSlice(id);
+        if (firstSlice == null)
+            return null;
+        int type = firstSlice.type;
+        int lastColumn = firstSlice.col + OBJECTS.objectNumColumns[type] - 1;
+        for (int sliceIndex = 0; sliceIndex < OBJECTS.getSliceCount(type); sliceIndex++) {
+            int sliceCol = firstSlice.col + OBJECTS.getSliceColumnOffset(type, sliceIndex);
+            //Objects don't overlap, so the slices of this object are the first ones in the column at its maximum row
+            int position = mObjectSlices.findFirstSlice(sliceCol, firstSlice.row);
+            while (mObjectSlices.getId(mObjectSlices.getSlice(sliceCol, position)) != id) {
+                position++;
             }
+            mObjectSlices.remove(sliceCol, position);
         }
+        mObjectTypes[id] = (short) OBJECTS.NONE;
+        //The first slice of an object is the one at its minimum column
+        int firstRow = firstSlice.row - OBJECTS.objectNumRows[type] + 1;
+        for (int c = firstSlice.col; c <= lastColumn; c++) {
+            for (int r = firstRow; r <= firstSlice.row; r++) {
+                getWritableChunk(r, c).setObjectID(TileChunk.getTileIndex(r, c), TileChunk.DEFAULT_OBJECT_ID);
+            }
+        }
+        mOccupancy.set(firstRow, firstSlice.col, firstSlice.row, lastColumn, false);
+        compactChunks(firstRow, firstSlice.col, firstSlice.row, lastColumn);
+        markChanged(firstRow, firstSlice.col, firstSlice.row, lastColumn);
         return firstSlice;
     }
 
     /**
-     * Remove a specific object slice from the object list
+     * Find the objects that cover at least one tile of a rectangle of tiles. Tiles outside of the city model are ignored.
+     * The first slice of an object is anchored to the object's maximum row and minimum column, and the slices of each column are
+     * sorted by row, so only the part of each column where the first slice of such an object could be anchored is searched.
      * 
-     * @param parentNode
-     *            the preceding object slice of the one to remove
-     * @return the new child object slice of parentNode
+     * @param startRow
+     * @param startCol
+     * @param endRow
+     * @param endCol
+     * @return the IDs of the objects, in no particular order
      */
-    public ObjectSlice removeObjectSlice(ObjectSlice parentNode) {
-        if (parentNode == null) {
-            mObjectList = mObjectList.next;
-            return mObjectList;
-        } else {
-            parentNode.next = parentNode.next.next;
-            return parentNode.next;
+    public int[] getObjectIDs(int startRow, int startCol, int endRow, int endCol) {
+        startRow = Math.max(startRow, 0);
+        startCol = Math.max(startCol, 0);
+        endRow = Math.min(endRow, mHeight - 1);
+        endCol = Math.min(endCol, mWidth - 1);
+        if (startRow > endRow || startCol > endCol || mOccupancy.countCovered(startRow, startCol, endRow, endCol) == 0)
+            return new int[0];
+
+        int[] ids = new int[16];
+        int count = 0;
+        int lastAnchorRow = Math.min(mHeight - 1, endRow + OBJECTS.maxNumRows - 1);
+        for (int col = Math.max(0, startCol - OBJECTS.maxNumColumns + 1); col <= endCol; col++) {
+            for (int i = mObjectSlices.findFirstSlice(col, startRow); i < mObjectSlices.getSliceCount(col); i++) {
+                int slice = mObjectSlices.getSlice(col, i);
+                int row = mObjectSlices.getRow(slice);
+                if (row > lastAnchorRow)
+                    break;
+                if (mObjectSlices.getSliceIndex(slice) != 0)
+                    continue;
+                int type = mObjectSlices.getType(slice);
+                if (col + OBJECTS.objectNumColumns[type] - 1 < startCol || row - OBJECTS.objectNumRows[type] + 1 > endRow)
+                    continue;
+                if (count == ids.length)
+                    ids = Arrays.copyOf(ids, count * 2);
+                ids[count++] = mObjectSlices.getId(slice);
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Remove several objects at once, but do not free their IDs (so that they may be reused).
+     * Each column holding slices of the objects is only passed over once, no matter how many of the objects have slices in it.
+     * 
+     * @param ids
+     *            the IDs of the objects, IDs without an object are ignored
+     * @param count
+     *            the number of objects
+     */
+    public void removeObjects(int[] ids, int count) {
+        int[] sortedIds = Arrays.copyOf(ids, count);
+        Arrays.sort(sortedIds);
+
+        //Find the columns holding slices of the objects
+        int columnCount = 0;
+        for (int i = 0; i < count; i++) {
+            int type = getObjectType(ids[i]);
+            if (type != OBJECTS.NONE)
+                columnCount += OBJECTS.getSliceCount(type);
+        }
+        int[] columns = new int[columnCount];
+        columnCount = 0;
+        for (int i = 0; i < count; i++) {
+            int type = getObjectType(ids[i]);
+            if (type == OBJECTS.NONE)
+                continue;
+            for (int sliceIndex = 0; sliceIndex < OBJECTS.getSliceCount(type); sliceIndex++) {
+                columns[columnCount++] = mObjectCols[ids[i]] + OBJECTS.getSliceColumnOffset(type, sliceIndex);
+            }
+        }
+        Arrays.sort(columns);
+        for (int i = 0; i < columnCount; i++) {
+            if (i == 0 || columns[i] != columns[i - 1])
+                mObjectSlices.removeAll(columns[i], sortedIds, count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            int id = ids[i];
+            int type = getObjectType(id);
+            if (type == OBJECTS.NONE)
+                continue;
+            mObjectTypes[id] = (short) OBJECTS.NONE;
+            int row = mObjectRows[id], col = mObjectCols[id];
+            int lastRow = row + OBJECTS.objectNumRows[type] - 1, lastCol = col + OBJECTS.objectNumColumns[type] - 1;
+            for (int c = col; c <= lastCol; c++) {
+                for (int r = row; r <= lastRow; r++) {
+                    getWritableChunk(r, c).setObjectID(TileChunk.getTileIndex(r, c), TileChunk.DEFAULT_OBJECT_ID);
+                }
+            }
+            mOccupancy.set(row, col, lastRow, lastCol, false);
+            compactChunks(row, col, lastRow, lastCol);
+            markChanged(row, col, lastRow, lastCol);
         }
     }
 
+    /**
+     * Check whether several objects could all be moved by the same offset: each must stay within the model,
+     * and the only covered tiles they may be moved onto are those covered by the objects being moved.
+     * 
+     * @param ids
+     *            the IDs of the objects
+     * @param count
+     *            the number of objects
+     * @param rowOffset
+     *            the number of rows to move the objects by
+     * @param colOffset
+     *            the number of columns to move the objects by
+     */
+    public boolean canMoveObjects(int[] ids, int count, int rowOffset, int colOffset) {
+        int[] sortedIds = Arrays.copyOf(ids, count);
+        Arrays.sort(sortedIds);
+        for (int i = 0; i < count; i++) {
+            int type = getObjectType(ids[i]);
+            if (type == OBJECTS.NONE)
+                return false;
+            int row = mObjectRows[ids[i]] + rowOffset, col = mObjectCols[ids[i]] + colOffset;
+            int lastRow = row + OBJECTS.objectNumRows[type] - 1, lastCol = col + OBJECTS.objectNumColumns[type] - 1;
+            if (row < 0 || col < 0 || lastRow >= mHeight || lastCol >= mWidth)
+                return false;
+            if (mOccupancy.countCovered(row, col, lastRow, lastCol) == 0)
+                continue;
+            for (int c = col; c <= lastCol; c++) {
+                for (int r = row; r <= lastRow; r++) {
+                    int id = getObjectID(r, c);
+                    if (id != -1 && Arrays.binarySearch(sortedIds, id) < 0)
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move several objects by the same offset at once, keeping their IDs.
+     * The objects are removed with removeObjects and added back with addObjects, so each affected column is only updated once.
+     * 
+     * @param ids
+     *            the IDs of the objects
+     * @param count
+     *            the number of objects
+     * @param rowOffset
+     *            the number of rows to move the objects by
+     * @param colOffset
+     *            the number of columns to move the objects by
+     * @return true if the objects were moved, false if any of them can't be moved (see canMoveObjects)
+     */
+    public boolean moveObjects(int[] ids, int count, int rowOffset, int colOffset) {
+        if (!canMoveObjects(ids, count, rowOffset, colOffset))
+            return false;
+        int[] rows = new int[count], cols = new int[count], types = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = mObjectRows[ids[i]] + rowOffset;
+            cols[i] = mObjectCols[ids[i]] + colOffset;
+            types[i] = mObjectTypes[ids[i]];
+        }
+        removeObjects(ids, count);
+        addObjects(rows, cols, types, ids, count);
+        return true;
+    }
+
+    /**
+     * Check whether an object could be moved so that its minimum row and column are at a new location:
+     * it must lie within the model on tiles that aren't covered by another object.
+     * 
+     * @param id
+     * @param row
+     *            the new minimum row covered by the object
+     * @param col
+     *            the new minimum column covered by the object
+     */
+    public boolean canMoveObject(int id, int row, int col) {
+        int type = getObjectType(id);
+        if (type == OBJECTS.NONE)
+            return false;
+        int lastRow = row + OBJECTS.objectNumRows[type] - 1;
+        int lastCol = col + OBJECTS.objectNumColumns[type] - 1;
+        if (row < 0 || col < 0 || lastRow >= mHeight || lastCol >= mWidth)
+            return false;
+        //The only covered tiles allowed are those the object itself covers
+        int overlapRows = Math.min(lastRow, mObjectRows[id] + OBJECTS.objectNumRows[type] - 1) - Math.max(row, mObjectRows[id]) + 1;
+        int overlapCols = Math.min(lastCol, mObjectCols[id] + OBJECTS.objectNumColumns[type] - 1) - Math.max(col, mObjectCols[id]) + 1;
+        int ownTiles = overlapRows > 0 && overlapCols > 0 ? overlapRows * overlapCols : 0;
+        return mOccupancy.countCovered(row, col, lastRow, lastCol) == ownTiles;
+    }
+
+    /**
+     * Move an object so that its minimum row and column are at a new location.
+     * The object keeps its ID and its slices, which are only taken out of the draw order and put back in at the new location.
+     * 
+     * @param id
+     * @param row
+     *            the new minimum row covered by the object
+     * @param col
+     *            the new minimum column covered by the object
+     * @return true if the object was moved, false if there is no such object or it can't be moved there (see canMoveObject)
+     */
+    public boolean moveObject(int id, int row, int col) {
+        if (!canMoveObject(id, row, col))
+            return false;
+        int type = mObjectTypes[id];
+        int oldRow = mObjectRows[id], oldCol = mObjectCols[id];
+        if (oldRow == row && oldCol == col)
+            return true;
+        int rows = OBJECTS.objectNumRows[type], columns = OBJECTS.objectNumColumns[type];
+        int sliceCount = OBJECTS.getSliceCount(type);
+        if (mMovedSlices.length < sliceCount)
+            mMovedSlices = new int[sliceCount];
+
+        //Take the slices out of their columns, then put them back in the same way createObjectSlices would
+        int oldSliceRow = oldRow + rows - 1;
+        for (int sliceIndex = 0; sliceIndex < sliceCount; sliceIndex++) {
+            int sliceCol = oldCol + OBJECTS.getSliceColumnOffset(type, sliceIndex);
+            int position = mObjectSlices.findFirstSlice(sliceCol, oldSliceRow);
+            while (mObjectSlices.getId(mObjectSlices.getSlice(sliceCol, position)) != id) {
+                position++;
+            }
+            mMovedSlices[sliceIndex] = mObjectSlices.detach(sliceCol, position);
+        }
+        int sliceRow = row + rows - 1;
+        int lastSliceCol = -1, position = 0;
+        for (int sliceIndex = 0; sliceIndex < sliceCount; sliceIndex++) {
+            int sliceCol = col + OBJECTS.getSliceColumnOffset(type, sliceIndex);
+            if (sliceCol != lastSliceCol) {
+                position = mObjectSlices.findInsertPosition(sliceCol, row);
+                lastSliceCol = sliceCol;
+            }
+            mObjectSlices.attach(position, mMovedSlices[sliceIndex], sliceRow, sliceCol);
+            position++;
+        }
+        setObjectAnchor(id, row, col, type);
+
+        //Clear the old tiles before covering the new ones, as the two may overlap
+        for (int c = oldCol; c < oldCol + columns; c++) {
+            for (int r = oldRow; r < oldRow + rows; r++) {
+                getWritableChunk(r, c).setObjectID(TileChunk.getTileIndex(r, c), TileChunk.DEFAULT_OBJECT_ID);
+            }
+        }
+        mOccupancy.set(oldRow, oldCol, oldSliceRow, oldCol + columns - 1, false);
+        for (int c = col; c < col + columns; c++) {
+            for (int r = row; r < row + rows; r++) {
+                getWritableChunk(r, c).setObjectID(TileChunk.getTileIndex(r, c), id);
+            }
+        }
+        mOccupancy.set(row, col, sliceRow, col + columns - 1, true);
+        compactChunks(oldRow, oldCol, oldSliceRow, oldCol + columns - 1);
+        markChanged(oldRow, oldCol, oldSliceRow, oldCol + columns - 1);
+        markChanged(row, col, sliceRow, col + columns - 1);
+        return true;
+    }
+
     /**
      * Get the first object slice of a specific id
      * 
      * @param id
+     * @return a copy of the slice, or null if there is no such object
      */
     public ObjectSlice getObjectSlice(int id) {
-        ObjectSlice currentSlice = mObjectList;
-        while (currentSlice != null && currentSlice.id != id)
-            currentSlice = currentSlice.next;
+        int type = getObjectType(id);
+        if (type == OBJECTS.NONE)
+            return null;
+        return new ObjectSlice(mObjectRows[id] + OBJECTS.objectNumRows[type] - 1, mObjectCols[id], id, type, (byte) 0);
+    }
+
+    /**
+     * @return the type of the object with a specific ID, or OBJECTS.NONE if there is no such object
+     */
+    public int getObjectType(int id) {
+        return id < mObjectTypes.length ? mObjectTypes[id] : OBJECTS.NONE;
+    }
+
+    /**
+     * @return the minimum row covered by the object with a specific ID
+     */
+    public int getObjectRow(int id) {
+        return mObjectRows[id];
+    }
+
+    /**
+     * @return the minimum column covered by the object with a specific ID
+     */
+    public int getObjectCol(int id) {
+        return mObjectCols[id];
+    }
+
+    /**
+     * @param slice
+     *            handle of a slice in mObjectSlices
+     * @return a copy of the slice
+     */
+    private ObjectSlice copyObjectSlice(int slice) {
+        return new ObjectSlice(mObjectSlices.getRow(slice), mObjectSlices.getCol(slice), mObjectSlices.getId(slice),
+                mObjectSlices.getType(slice), (byte) mObjectSlices.getSliceIndex(slice));
+    }
 
-        return currentSlice;
+    /**
+     * Take a snapshot of the model, e.g. to save it on another thread while this model keeps changing.
+     * The chunks of tiles are shared rather than copied, and whichever model first writes to a shared chunk copies it first,
+     * so the snapshot costs little more than copying the objects. Like the rest of the model, this isn't thread-safe,
+     * but once taken, the snapshot and this model can be used on different threads.
+     * 
+     * @return the snapshot
+     */
+    public CityModel snapshot() {
+        CityModel snapshot = new CityModel();
+        snapshot.mWidth = mWidth;
+        snapshot.mHeight = mHeight;
+        snapshot.mChunkColumns = mChunkColumns;
+        snapshot.mChunkRows = mChunkRows;
+        snapshot.mChunks = mChunks.clone();
+        for (int i = 0; i < mChunks.length; i++) {
+            mSharedChunks[i] = mChunks[i] != null;
+        }
+        snapshot.mSharedChunks = mSharedChunks.clone();
+        snapshot.mTileStorage = mTileStorage;
+        snapshot.mVersion = mVersion;
+        snapshot.mChunkVersions = mChunkVersions.clone();
+        snapshot.mLazyMods = mLazyMods;
+        snapshot.mStaleMods = new long[mStaleMods.length][];
+        for (int i = 0; i < mStaleMods.length; i++) {
+            if (mStaleMods[i] != null)
+                snapshot.mStaleMods[i] = mStaleMods[i].clone();
+        }
+        snapshot.mStaleModCounts = mStaleModCounts.clone();
+        snapshot.mObjectIDs = mObjectIDs.copy();
+        snapshot.mObjectRows = mObjectRows.clone();
+        snapshot.mObjectCols = mObjectCols.clone();
+        snapshot.mObjectTypes = mObjectTypes.clone();
+        snapshot.mObjectSlices = mObjectSlices.copy();
+        snapshot.mOccupancy = mOccupancy.copy();
+        return snapshot;
     }
 
     /**
@@ -651,33 +1692,55 @@ public class CityModel {
         /*
          * Format:
          * int mWidth, mHeight;
-         * short mNumObjects;
-         * byte[][] mTerrainMap;
-         * byte[][] mTerrainModMap;
-         * boolean[][] mTerrainBlend;
-         * ObjectSlice mObjectList;
+         * int imageCount;
+         * varint number of objects;
+         * int[mChunkColumns * mChunkRows] index of each chunk's image, or -1 if the chunk isn't allocated;
+         * int[imageCount + 1] offset of each compressed image from the first, followed by the size of all of them;
+         * byte[][imageCount] images of the allocated chunks, column by column, each compressed on its own (see compressImages);
+         * TileChunk extra mods[imageCount], in the same order as the images (see TileChunk.writeExtraMods);
+         * varint sliceCount;
+         * ObjectSlice[sliceCount] slices, column by column in draw order;
+         * 
+         * varints are written by FileStreamUtils.writeVarInt
+         * The offsets allow any image to be inflated without the others, so they are compressed in parallel, and restoring maps the images
+         * and only inflates each one once its chunk is first read.
          */
         Log.v(TAG, "Saving...");
+        resolveAllStaleMods();//the chunks are written out directly, so their mods must be up to date
         try {
+            int[] imageIndices = new int[mChunks.length];
+            int imageCount = 0;
+            for (int i = 0; i < mChunks.length; i++) {
+                imageIndices[i] = mChunks[i] != null ? imageCount++ : -1;
+            }
+            byte[][] images = compressImages(imageIndices, imageCount);
             stream.write(Constant.CURRENT_VERSION_NUM);
             stream.write(mWidth);
             stream.write(mHeight);
-            stream.write(mNumObjects);
-            for (byte[] arr : mTerrainMap) {
-                stream.write(arr);
+            stream.write(imageCount);
+            stream.writeVarInt(getNumberOfObjects());
+            for (int i = 0; i < mChunks.length; i++) {
+                stream.write(imageIndices[i]);
+            }
+            int offset = 0;
+            for (int i = 0; i < imageCount; i++) {
+                stream.write(offset);
+                offset += images[i].length;
             }
-            for (byte[] arr : mTerrainModMap) {
-                stream.write(arr);
+            stream.write(offset);
+            for (int i = 0; i < imageCount; i++) {
+                stream.write(images[i]);
             }
-            for (byte[] arr : mTerrainBlend) {
-                stream.write(arr);
+            for (int i = 0; i < mChunks.length; i++) {
+                if (mChunks[i] != null)
+                    mChunks[i].writeExtraMods(stream);
             }
-            ObjectSlice curSlice = mObjectList;
-            while (curSlice != null) {
-                curSlice.write(stream);
-                curSlice = curSlice.next;
+            stream.writeVarInt(mObjectSlices.getSliceCount());
+            for (int col = 0; col < mWidth; col++) {
+                for (int i = 0; i < mObjectSlices.getSliceCount(col); i++) {
+                    copyObjectSlice(mObjectSlices.getSlice(col, i)).write(stream);
+                }
             }
-            stream.write((short) -1);//Mark ending for object slice loop
             stream.write(0xDEADBEEF);//Mark EOF
             stream.flush();
         } catch (IOException e) {
@@ -696,79 +1759,172 @@ public class CityModel {
     }
 
     /**
-     * Fill the city model based off the contents of a stream.
+     * Fill the city model based off the contents of a stream, then close the stream.
      * Allocates city model arrays if needed (ergo, it assumes same dimensions as prior uses of this object).
      * 
      * @param stream
      * @return
      */
     public boolean restore(FileStreamUtils stream) {
+        return restore(stream, true);
+    }
+
+    /**
+     * Fill the city model based off the contents of a stream.
+     * Allocates city model arrays if needed (ergo, it assumes same dimensions as prior uses of this object).
+     * 
+     * @param stream
+     * @param closeStream
+     *            false to leave the stream open, positioned after the model (e.g. to read a journal of later edits)
+     * @return
+     */
+    public boolean restore(FileStreamUtils stream, boolean closeStream) {
         /*
-         * Format:
-         * int mWidth, mHeight;
-         * short mNumObjects;
-         * byte[][] mTerrainMap;
-         * byte[][] mTerrainModMap;
-         * boolean[][] mTerrainBlend;
-         * ObjectSlice mObjectList;
+         * Format: see save
+         * 
+         * The images are mapped rather than read, so restoring doesn't copy or inflate them (see MappedTileChunk). The stream must
+         * therefore be of a file that isn't written to while the model is in use, so a model should be saved to a new file and moved
+         * over the old.
+         * 
+         * Version 5 stores the images uncompressed instead, directly after the image count at the next multiple of PAGE_SIZE bytes from
+         * the start of the stream, followed by the number of objects, the image indices and the extra mods.
+         * 
+         * Version 4 stores the number of objects after mHeight, then (boolean allocated, TileChunk chunk if allocated)[chunkCount]
+         * chunks (see TileChunk.write) instead of the images, image indices and extra mods.
+         * Versions before 4 store the number of objects and the slices with shorts, with a row of -1 ending the slices.
+         * Their chunks have short object IDs (see TileChunk.readV3), and versions before 3 store the tiles column by column
+         * instead (see restoreColumns).
          */
         Log.v(TAG, "Restoring...");
         try {
-            @SuppressWarnings("unused")
             int curVersion = stream.readInt();
             mWidth = stream.readInt();
             mHeight = stream.readInt();
-            mNumObjects = stream.readShort();
-            if (mTerrainMap == null) {
-                mTerrainMap = new byte[mWidth][mHeight];
-                mTerrainModMap = new byte[mWidth][mHeight * Constant.MAX_NUMBER_OF_TERRAIN_MODS];
-                mTerrainBlend = new byte[mWidth][mHeight];
-                mObjectMap = new short[mWidth][mHeight];
-                mUsedObjectIDs = new boolean[Constant.OBJECT_LIMIT];
-                Arrays.fill(mUsedObjectIDs, false);
-                for (short[] arr : mObjectMap) {
-                    Arrays.fill(arr, (short) -1);
+            int imageCount = curVersion >= 5 ? stream.readInt() : 0;
+            ByteBuffer images = null;
+            if (curVersion == 5) {
+                long imagesSize = (long) imageCount * TileChunk.IMAGE_SIZE;
+                if (imageCount > 0)
+                    images = stream.map(PAGE_SIZE, imagesSize);
+                stream.seek(PAGE_SIZE + imagesSize);
+            }
+            //The number of objects is skipped, the used IDs are rebuilt from the object slices instead
+            if (curVersion >= 4) {
+                stream.readVarInt();
+            } else {
+                stream.readShort();
+            }
+            if (mChunks == null) {
+                allocate(mWidth, mHeight);
+            } else {
+                Arrays.fill(mStaleMods, null);
+                Arrays.fill(mStaleModCounts, 0);
+                Arrays.fill(mSharedChunks, false);
+            }
+            if (curVersion >= 6) {
+                int[] imageIndices = new int[mChunks.length];
+                for (int i = 0; i < mChunks.length; i++) {
+                    imageIndices[i] = stream.readInt();
+                    if (imageIndices[i] >= imageCount)
+                        throw new IOException("Image index out of range");
+                }
+                int[] offsets = new int[imageCount + 1];
+                for (int i = 0; i <= imageCount; i++) {
+                    offsets[i] = stream.readInt();
+                    if (i == 0 ? offsets[i] != 0 : offsets[i] <= offsets[i - 1])//a compressed image is never empty
+                        throw new IOException("Malformed image offsets");
                 }
+                //The images are mapped, and each is only inflated once its chunk is first read (see MappedTileChunk)
+                long imagesPosition = stream.getPosition();
+                ByteBuffer compressedImages = offsets[imageCount] > 0 ? stream.map(imagesPosition, offsets[imageCount]) : null;
+                stream.seek(imagesPosition + offsets[imageCount]);
+                for (int i = 0; i < mChunks.length; i++) {
+                    int imageIndex = imageIndices[i];
+                    if (imageIndex >= 0) {
+                        compressedImages.clear();
+                        compressedImages.position(offsets[imageIndex]);
+                        compressedImages.limit(offsets[imageIndex + 1]);
+                        mChunks[i] = new MappedTileChunk(compressedImages.slice(), true, mTileStorage);
+                    } else {
+                        mChunks[i] = null;
+                    }
+                }
+                //The extra mods are in the same order as the images, which is the order of the chunks
+                for (int i = 0; i < mChunks.length; i++) {
+                    if (mChunks[i] != null)
+                        mChunks[i].readExtraMods(stream);
+                }
+            } else if (curVersion == 5) {
+                for (int i = 0; i < mChunks.length; i++) {
+                    int imageIndex = stream.readInt();
+                    if (imageIndex >= 0) {
+                        images.clear();
+                        images.position(imageIndex * TileChunk.IMAGE_SIZE);
+                        images.limit(images.position() + TileChunk.IMAGE_SIZE);
+                        mChunks[i] = new MappedTileChunk(images.slice(), false, mTileStorage);
+                    } else {
+                        mChunks[i] = null;
+                    }
+                }
+                //The extra mods are in the same order as the images, which is the order of the chunks
+                for (int i = 0; i < mChunks.length; i++) {
+                    if (mChunks[i] != null)
+                        mChunks[i].readExtraMods(stream);
+                }
+            } else if (curVersion >= 3) {
+                ByteBuffer image = ByteBuffer.allocateDirect(TileChunk.IMAGE_SIZE);
+                for (int i = 0; i < mChunks.length; i++) {
+                    if (stream.readBoolean()) {
+                        mChunks[i] = TileChunk.create(mTileStorage);
+                        if (curVersion >= 4) {
+                            mChunks[i].read(stream, image);
+                        } else {
+                            mChunks[i].readV3(stream, image);
+                        }
+                        compactChunk(i);
+                    } else {
+                        mChunks[i] = null;
+                    }
+                }
+            } else {
+                restoreColumns(stream, curVersion);
+                compactChunks(0, 0, mHeight - 1, mWidth - 1);
             }
-            for (int i = 0; i < mWidth; i++) {
-                stream.readBytes(mTerrainMap[i], mHeight);
-            }
-            for (int i = 0; i < mWidth; i++) {
-                stream.readBytes(mTerrainModMap[i], mHeight * Constant.MAX_NUMBER_OF_TERRAIN_MODS);
-            }
-            for (int i = 0; i < mWidth; i++) {
-                stream.readBytes(mTerrainBlend[i], mHeight);
-            }
-            ObjectSlice curSlice, newSlice = new ObjectSlice();
-            if (newSlice.read(stream)) {
-                setupReadObject(newSlice);
-                curSlice = newSlice;
-                mObjectList = newSlice;
-                newSlice = new ObjectSlice();
-                while (newSlice.read(stream)) {
-                    setupReadObject(newSlice);
-                    curSlice.next = newSlice;
-                    curSlice = newSlice;
-                    newSlice = new ObjectSlice();
+            mObjectSlices.clear();
+            mObjectIDs.clear();
+            mOccupancy.clear();
+            Arrays.fill(mObjectTypes, (short) OBJECTS.NONE);
+            //Slices are saved in the order they should be drawn
+            ObjectSlice newSlice = new ObjectSlice();
+            if (curVersion >= 4) {
+                int sliceCount = stream.readVarInt();
+                for (int i = 0; i < sliceCount; i++) {
+                    newSlice.read(stream);
+                    setupReadObject(newSlice, curVersion < 3);
+                    mObjectSlices.append(newSlice.row, newSlice.col, newSlice.id, newSlice.type, newSlice.sliceIndex);
                 }
-
-                curSlice.next = null;
             } else {
-                mObjectList = null;
+                while (newSlice.readLegacy(stream)) {
+                    setupReadObject(newSlice, curVersion < 3);
+                    mObjectSlices.append(newSlice.row, newSlice.col, newSlice.id, newSlice.type, newSlice.sliceIndex);
+                }
             }
             if (stream.readInt() != 0xDEADBEEF) {//Check for EOF
                 Log.d(TAG, "Missing DEADBEEF at EOF");
                 return false;
             }
+            markChanged(0, 0, mHeight - 1, mWidth - 1);
         } catch (IOException e) {
             Log.d(TAG, "IO Exception on restoring City Model: " + e.getLocalizedMessage());
             e.printStackTrace();
             return false;
         } finally {
-            try {
-                stream.close();
-            } catch (IOException e) {
-                return false;
+            if (closeStream) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    return false;
+                }
             }
         }
         Log.v(TAG, "Done Restoring");
@@ -776,19 +1932,152 @@ public class CityModel {
     }
 
     /**
-     * Setup mUsedObjectIDs array and mObjectMap array based off an object slice
+     * Compress the images of the allocated chunks, each on its own, in bands of chunk columns on all available cores.
+     * 
+     * @param imageIndices
+     *            index of each chunk's image, or -1 if the chunk isn't allocated
+     * @param imageCount
+     *            number of allocated chunks
+     * @return the compressed images (zlib streams of TileChunk images)
+     */
+    private byte[][] compressImages(final int[] imageIndices, int imageCount) throws IOException {
+        final byte[][] images = new byte[imageCount][];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(mChunkColumns);
+        for (int chunkCol = 0; chunkCol < mChunkColumns; chunkCol++) {
+            final int firstChunk = chunkCol * mChunkRows;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    //Saving happens far more often than loading, so favour speed over size
+                    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                    ByteBuffer image = ByteBuffer.allocate(TileChunk.IMAGE_SIZE);
+                    byte[] buffer = new byte[1024];
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    try {
+                        for (int i = firstChunk; i < firstChunk + mChunkRows; i++) {
+                            if (imageIndices[i] < 0)
+                                continue;
+                            if (mChunks[i] instanceof MappedTileChunk) {
+                                //Chunks that haven't changed since they were restored already have a compressed image
+                                byte[] unchanged = ((MappedTileChunk) mChunks[i]).getCompressedImage();
+                                if (unchanged != null) {
+                                    images[imageIndices[i]] = unchanged;
+                                    continue;
+                                }
+                            }
+                            mChunks[i].getImage(image);
+                            deflater.reset();
+                            deflater.setInput(image.array(), image.arrayOffset(), TileChunk.IMAGE_SIZE);
+                            deflater.finish();
+                            compressed.reset();
+                            while (!deflater.finished()) {
+                                compressed.write(buffer, 0, deflater.deflate(buffer));
+                            }
+                            images[imageIndices[i]] = compressed.toByteArray();
+                        }
+                    } finally {
+                        deflater.end();//free the native memory now rather than when it is garbage collected
+                    }
+                    return null;
+                }
+            });
+        }
+        runAllOrThrow(getWorkers(), tasks);
+        return images;
+    }
+
+    /**
+     * Fill the tiles of the city model from a stream saved before the tiles were stored in chunks.
+     * 
+     * Format:
+     * byte[mWidth][mHeight] terrain;
+     * (int length, byte[length] mods)[mWidth] terrain mods, each column holding (unsigned byte count, byte[count] mods)[mHeight];
+     * byte[mWidth][mHeight] blend;
+     * 
+     * Version 1 stores the terrain mods as byte[mWidth][mHeight * 5] instead.
+     * 
+     * @param stream
+     * @param version
+     *            the version the stream was saved with
+     */
+    private void restoreColumns(FileStreamUtils stream, int version) throws IOException {
+        //Only allocate chunks for tiles that differ from an unallocated chunk
+        byte[] column = new byte[mHeight * V1_MODS_PER_TILE];
+        for (int col = 0; col < mWidth; col++) {
+            stream.readBytes(column, mHeight);
+            for (int row = 0; row < mHeight; row++) {
+                TileChunk chunk = getChunkForWrite(row, col, column[row] == TileChunk.DEFAULT_TERRAIN);
+                if (chunk != null)
+                    chunk.setTerrain(TileChunk.getTileIndex(row, col), column[row]);
+            }
+        }
+        if (version == 1) {
+            for (int col = 0; col < mWidth; col++) {
+                stream.readBytes(column, mHeight * V1_MODS_PER_TILE);
+                for (int row = 0; row < mHeight; row++) {
+                    for (int i = 0; i < V1_MODS_PER_TILE; i++) {
+                        byte mod = column[row * V1_MODS_PER_TILE + i];
+                        TileChunk chunk = getChunkForWrite(row, col, mod == TileChunk.DEFAULT_MOD);
+                        if (chunk != null)
+                            chunk.setMod(TileChunk.getTileIndex(row, col), i, mod);
+                    }
+                }
+            }
+        } else {
+            for (int col = 0; col < mWidth; col++) {
+                int length = stream.readInt();
+                if (length > column.length)
+                    column = new byte[length];
+                stream.readBytes(column, length);
+                int pos = 0;
+                for (int row = 0; row < mHeight; row++) {
+                    int count = column[pos++] & 0xFF;
+                    if (count != 0)
+                        setMods(row, col, column, pos, count);
+                    pos += count;
+                }
+            }
+        }
+        for (int col = 0; col < mWidth; col++) {
+            stream.readBytes(column, mHeight);
+            for (int row = 0; row < mHeight; row++) {
+                TileChunk chunk = getChunkForWrite(row, col, column[row] == TileChunk.DEFAULT_BLEND);
+                if (chunk != null)
+                    chunk.setBlend(TileChunk.getTileIndex(row, col), column[row]);
+            }
+        }
+    }
+
+    /**
+     * Mark the ID as used, record where the object is and setup the object IDs of the covered tiles based off an object slice
      * 
      * @param slice
+     * @param setTileIDs
+     *            false if the restored tiles already hold the object IDs (as saved chunk images do), so that the chunks are left
+     *            untouched rather than inflated or copied
+     * @throws IOException
+     *             if the object ID is out of range
      */
-    private void setupReadObject(ObjectSlice slice) {
-        if (!mUsedObjectIDs[slice.id]) {
-            mUsedObjectIDs[slice.id] = true;
+    private void setupReadObject(ObjectSlice slice, boolean setTileIDs) throws IOException {
+        if (slice.id < 0 || slice.id >= mObjectIDs.getLimit())
+            throw new IOException("Object ID out of range: " + slice.id);
+        if (slice.type >= OBJECTS.count)
+            throw new IOException("Unknown object type: " + slice.type);
+        if (slice.row < 0 || slice.row >= mHeight || slice.col < 0 || slice.col >= mWidth)
+            throw new IOException("Object slice out of bounds: [R" + slice.row + ",C" + slice.col + "]");
+        if (mObjectIDs.reserve(slice.id)) {
             int sliceRow = slice.row - OBJECTS.objectNumRows[slice.type] + 1;
-            for (int c = slice.col; c < slice.col + OBJECTS.objectNumColumns[slice.type]; c++) {
+            if (sliceRow < 0 || slice.col + OBJECTS.objectNumColumns[slice.type] > mWidth)
+                throw new IOException("Object out of bounds: " + slice.id);
+            growObjectArrays();
+            setObjectAnchor(slice.id, sliceRow, slice.col, slice.type);
+            for (int c = slice.col; setTileIDs && c < slice.col + OBJECTS.objectNumColumns[slice.type]; c++) {
                 for (int r = sliceRow; r < sliceRow + OBJECTS.objectNumRows[slice.type]; r++) {
-                    mObjectMap[c][r] = (short) slice.id;
+                    if (getObjectID(r, c) != slice.id)
+                        getWritableChunk(r, c).setObjectID(TileChunk.getTileIndex(r, c), slice.id);
                 }
             }
+            mOccupancy.set(sliceRow, slice.col, slice.row, slice.col + OBJECTS.objectNumColumns[slice.type] - 1, true);
         }
     }
 }
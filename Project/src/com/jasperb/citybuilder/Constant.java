@@ -3,6 +3,12 @@
  */
 package com.jasperb.citybuilder;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
 /**
  * @author Jasper
  * 
@@ -11,7 +17,7 @@ public class Constant {
     /**
      * Current version of the application. Important for properly interpreting saved city models.
      */
-    public static final int CURRENT_VERSION_NUM = 1;
+    public static final int CURRENT_VERSION_NUM = 6;
 
     /**
      * Maximum amount of zoom for the contents of the city view.
@@ -59,20 +65,59 @@ public class Constant {
     public static final int FOCUS_EXTENDED_BOUNDARY = 8;
 
     /**
-     * Maximum number of an objects per city model
+     * Maximum number of an objects per city model (object IDs must fit in the 20 bits PackedTileChunk has for them)
+     */
+    public static final int OBJECT_LIMIT = 1 << 19;
+
+    /**
+     * Number of objects a city model has room for before it grows its object arrays
      */
-    public static final short OBJECT_LIMIT = 3000;
+    public static final int INITIAL_OBJECT_CAPACITY = 256;
 
     /**
      * Maximum width and height of a city model
      */
-    public static final int MAX_CITY_MODEL_SIZE = 500;//Must be multiple of MIN_CITY_MODEL_SIZE
+    public static final int MAX_CITY_MODEL_SIZE = 4000;//Must be multiple of MIN_CITY_MODEL_SIZE
 
     /**
      * Minimum width and height of a city model
      */
     public static final int MIN_CITY_MODEL_SIZE = 25;
 
+    /**
+     * Tiles of a city model are stored in square chunks of (1 << CHUNK_SIZE_SHIFT) tiles per side.
+     */
+    public static final int CHUNK_SIZE_SHIFT = 5;
+
+    /**
+     * Width and height of a chunk of tiles.
+     */
+    public static final int CHUNK_SIZE = 1 << CHUNK_SIZE_SHIFT;
+
+    /**
+     * Number of tiles in a chunk.
+     */
+    public static final int CHUNK_AREA = CHUNK_SIZE * CHUNK_SIZE;
+
+    /**
+     * Layout used for storing the tiles of new chunks.
+     */
+    public static final int DEFAULT_TILE_STORAGE = TILE_STORAGE.BUFFER;
+
+    /**
+     * Whether new city models only determine terrain mods once they are read (see CityModel.setLazyMods).
+     */
+    public static final boolean DEFAULT_LAZY_TERRAIN_MODS = false;
+
+    /**
+     * Available layouts for storing the tiles of a chunk.
+     * ARRAYS keeps each property of a tile in its own array, PACKED keeps all properties of a tile in a single int,
+     * BUFFER keeps the tiles off the heap in the same layout they are saved in.
+     */
+    public static class TILE_STORAGE {
+        public static final int ARRAYS = 0, PACKED = 1, BUFFER = 2;
+    }
+
     /**
      * Types of available terrain.
      */
@@ -110,11 +155,6 @@ public class Constant {
         }
     }
 
-    /**
-     * Maximum number of terrain mods that can be applied to a tile.
-     */
-    public static int MAX_NUMBER_OF_TERRAIN_MODS = 5;
-
     /**
      * Types of available terrain mods.
      */
@@ -173,33 +213,99 @@ public class Constant {
     }
 
     /**
-     * Types of available objects
+     * Registry of the available object types, loaded from the MANIFEST asset by calling load before any city model is created.
+     * Each line of the manifest is "name columns rows" (blank lines and lines starting with # are ignored),
+     * and types are numbered in the order they are listed. The image of a type is the asset "BUILDINGS/name.png".
+     * The geometry of each type's slices is worked out once when loading, rather than whenever a slice is created or drawn.
      */
     public static class OBJECTS {
-        public static final int TEST2X4 = 0, TEST4X2 = 1, TEST1X3 = 2, TEST3X1 = 3, TEST1X1 = 4;
-        public static final int buildingCount = 5;
+        public static final String MANIFEST = "BUILDINGS/manifest.txt";
+        public static final int MAX_COUNT = 256;//types are saved as a single unsigned byte
+        public static final int NONE = -1;
 
-        public static final int count = buildingCount;
-        public static final int NONE = count;
+        public static int count = 0;
+        public static int maxNumColumns = 0, maxNumRows = 0;//largest footprint of any type
 
         //Number of columns/rows covered by an object
-        public static final byte[] objectNumColumns = new byte[count];
-        public static final byte[] objectNumRows = new byte[count];
-        static {
-            objectNumRows[TEST2X4] = 2;
-            objectNumColumns[TEST2X4] = 4;
+        public static byte[] objectNumColumns = new byte[0];
+        public static byte[] objectNumRows = new byte[0];
 
-            objectNumRows[TEST4X2] = 4;
-            objectNumColumns[TEST4X2] = 2;
+        private static String[] sNames = new String[0];
+        private static int[] sSliceColumns = new int[0];//number of half tile widths that a slice spans
+        private static int[] sSliceCounts = new int[0];
+        private static int[][] sSliceColumnOffsets = new int[0][];//column of each slice relative to the object's minimum column
 
-            objectNumRows[TEST1X3] = 1;
-            objectNumColumns[TEST1X3] = 3;
+        /**
+         * @return true if the registry has been loaded
+         */
+        public static boolean isLoaded() {
+            return count > 0;
+        }
 
-            objectNumRows[TEST3X1] = 3;
-            objectNumColumns[TEST3X1] = 1;
+        /**
+         * Load the registry from a manifest, replacing any previously loaded types.
+         * 
+         * @param stream
+         *            the manifest, which is not closed
+         * @throws IOException
+         *             if the manifest can't be read or is malformed
+         */
+        public static void load(InputStream stream) throws IOException {
+            ArrayList<String> names = new ArrayList<String>();
+            ArrayList<int[]> sizes = new ArrayList<int[]>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                String[] parts = line.split("\\s+");
+                if (parts.length != 3)
+                    throw new IOException("Malformed object type: " + line);
+                int columns, rows;
+                try {
+                    columns = Integer.parseInt(parts[1]);
+                    rows = Integer.parseInt(parts[2]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed object type: " + line);
+                }
+                if (columns < 1 || rows < 1 || columns > Byte.MAX_VALUE || rows > Byte.MAX_VALUE)
+                    throw new IOException("Invalid size for object type: " + line);
+                names.add(parts[0]);
+                sizes.add(new int[] { columns, rows });
+            }
+            if (names.isEmpty() || names.size() > MAX_COUNT)
+                throw new IOException("Invalid number of object types: " + names.size());
+
+            int newCount = names.size();
+            byte[] numColumns = new byte[newCount], numRows = new byte[newCount];
+            int[] sliceColumns = new int[newCount], sliceCounts = new int[newCount];
+            int[][] sliceColumnOffsets = new int[newCount][];
+            int newMaxColumns = 0, newMaxRows = 0;
+            for (int type = 0; type < newCount; type++) {
+                int columns = sizes.get(type)[0], rows = sizes.get(type)[1];
+                numColumns[type] = (byte) columns;
+                numRows[type] = (byte) rows;
+                newMaxColumns = Math.max(newMaxColumns, columns);
+                newMaxRows = Math.max(newMaxRows, rows);
+                //A slice is one tile wide plus half a tile for each row after the first, and the image spans a half tile per column and row
+                sliceColumns[type] = rows + 1;
+                sliceCounts[type] = (columns + rows + sliceColumns[type] - 1) / sliceColumns[type];
+                sliceColumnOffsets[type] = new int[sliceCounts[type]];
+                for (int slice = 0; slice < sliceCounts[type]; slice++) {
+                    sliceColumnOffsets[type][slice] = Math.min(sliceColumns[type] * slice, columns - 1);
+                }
+            }
 
-            objectNumRows[TEST1X1] = 1;
-            objectNumColumns[TEST1X1] = 1;
+            sNames = names.toArray(new String[newCount]);
+            objectNumColumns = numColumns;
+            objectNumRows = numRows;
+            sSliceColumns = sliceColumns;
+            sSliceCounts = sliceCounts;
+            sSliceColumnOffsets = sliceColumnOffsets;
+            maxNumColumns = newMaxColumns;
+            maxNumRows = newMaxRows;
+            count = newCount;
         }
 
         /**
@@ -208,7 +314,7 @@ public class Constant {
          * @param type
          */
         public static int getSliceWidth(int type) {
-            return (Constant.TILE_WIDTH / 2) * (2 + (OBJECTS.objectNumRows[type] - 1));
+            return (Constant.TILE_WIDTH / 2) * sSliceColumns[type];
         }
 
         /**
@@ -217,7 +323,16 @@ public class Constant {
          * @param type
          */
         public static int getScaledSliceWidth(int type, int tileWidth) {
-            return (tileWidth / 2) * (2 + (OBJECTS.objectNumRows[type] - 1));
+            return (tileWidth / 2) * sSliceColumns[type];
+        }
+
+        /**
+         * Get the number of half tile widths (and so the number of columns) that a slice of a specific object type spans
+         * 
+         * @param type
+         */
+        public static int getSliceColumns(int type) {
+            return sSliceColumns[type];
         }
 
         /**
@@ -226,25 +341,24 @@ public class Constant {
          * @param type
          */
         public static int getSliceCount(int type) {
-            int width = (Constant.TILE_WIDTH / 2) * (OBJECTS.objectNumColumns[type] + OBJECTS.objectNumRows[type]);
-            return (int) Math.ceil(width / (float) getSliceWidth(type));
+            return sSliceCounts[type];
+        }
+
+        /**
+         * Get the column that a slice is anchored to, relative to the minimum column of its object
+         * 
+         * @param type
+         * @param slice
+         *            0-based index of the slice
+         */
+        public static int getSliceColumnOffset(int type, int slice) {
+            return sSliceColumnOffsets[type][slice];
         }
 
         public static String getName(int type) {
-            switch (type) {
-            case TEST2X4:
-                return "Test2x4";
-            case TEST4X2:
-                return "Test4x2";
-            case TEST1X3:
-                return "Test1x3";
-            case TEST3X1:
-                return "Test3x1";
-            case TEST1X1:
-                return "Test1x1";
-            default:
+            if (type < 0 || type >= count)
                 throw new IllegalArgumentException("Object type " + type + " does not exist");
-            }
+            return sNames[type];
         }
     }
 
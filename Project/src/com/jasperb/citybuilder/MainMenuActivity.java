@@ -11,6 +11,7 @@ import com.jasperb.citybuilder.dialog.CitySelectDialogFragment;
 import com.jasperb.citybuilder.dialog.CitySelectDialogFragment.CitySelectDialogListener;
 import com.jasperb.citybuilder.dialog.CreateCityDialogFragment;
 import com.jasperb.citybuilder.dialog.CreateCityDialogFragment.CreateCityDialogListener;
+import com.jasperb.citybuilder.util.EditJournal;
 
 public class MainMenuActivity extends Activity implements CitySelectDialogListener, CreateCityDialogListener {
 
@@ -115,7 +116,7 @@ public class MainMenuActivity extends Activity implements CitySelectDialogListen
      *            the name of the city to delete
      */
     public void clearSave(String cityName) {
-        deleteFile(cityName);
+        EditJournal.delete(getFileStreamPath(cityName));//rather than deleteFile, so writes still queued for the city don't bring it back
     }
 
     @Override
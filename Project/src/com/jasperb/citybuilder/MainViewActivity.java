@@ -1,9 +1,9 @@
 package com.jasperb.citybuilder;
 
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.IOException;
 
 import android.app.Activity;
-import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
@@ -19,7 +19,7 @@ import com.jasperb.citybuilder.cityview.CityView;
 import com.jasperb.citybuilder.cityview.CityViewController;
 import com.jasperb.citybuilder.dialog.GridViewDialogFragment;
 import com.jasperb.citybuilder.dialog.GridViewDialogFragment.GridViewDialogListener;
-import com.jasperb.citybuilder.util.FileStreamUtils;
+import com.jasperb.citybuilder.util.EditJournal;
 import com.jasperb.citybuilder.util.ObjectBitmaps;
 import com.jasperb.citybuilder.util.TileBitmaps;
 
@@ -40,6 +40,7 @@ public class MainViewActivity extends Activity implements GridViewDialogListener
     private CityViewController mCityViewController;
     private OverlayController mOverlayController;
     private CityModel mCityModel;
+    private EditJournal mJournal;
 
     private boolean mAllocated = false;
 
@@ -54,10 +55,26 @@ public class MainViewActivity extends Activity implements GridViewDialogListener
         String cityName = intent.getStringExtra(STATE_CITY_NAME);
         Log.v(TAG, "ON CREATE: " + cityName);
 
+        if (!ObjectBitmaps.loadObjectTypes(this)) {//Objects of a saved city model can't be interpreted without their types
+            finish();
+            return;
+        }
+        //New saves are written to the cache directory and moved over the old save, so that the save is never written over in place
+        //(a restored model maps it) and never shows up as a city. It is on the same file system.
+        mJournal = EditJournal.get(getFileStreamPath(cityName), new File(getCacheDir(), cityName));
         try {
-            mCityModel = new CityModel(new FileStreamUtils(openFileInput(cityName)));
-        } catch (FileNotFoundException e) {
-            mCityModel = new CityModel(intent.getIntExtra(STATE_CITY_WIDTH, 200), intent.getIntExtra(STATE_CITY_HEIGHT, 200));
+            if (getFileStreamPath(cityName).exists()) {
+                mCityModel = mJournal.restore();
+            } else {
+                mCityModel = new CityModel(intent.getIntExtra(STATE_CITY_WIDTH, 200), intent.getIntExtra(STATE_CITY_HEIGHT, 200));
+                mJournal.create(mCityModel);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "IO Exception on opening the city: " + e.getLocalizedMessage());
+            e.printStackTrace();
+            mJournal = null;
+            finish();
+            return;
         }
         if (mCityModel.getWidth() == 0 || mCityModel.getHeight() == 0) {//Error (probably in restoring from saved model)
             finish();
@@ -70,6 +87,7 @@ public class MainViewActivity extends Activity implements GridViewDialogListener
         mOverlayController = new OverlayController();
         mState.NS_Overlay = mOverlayController;
         mState.NS_CityName = cityName;
+        mState.NS_Journal = mJournal;
 
         mCityView = (CityView) findViewById(R.id.City);
 
@@ -154,12 +172,20 @@ public class MainViewActivity extends Activity implements GridViewDialogListener
         super.onStop();
         Log.v(TAG, "ON STOP");
 
-        mCityView.stopDrawThread();
-        try {
-            mCityModel.save(new FileStreamUtils(openFileOutput(mState.NS_CityName, Context.MODE_PRIVATE)));
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
+        mCityView.stopDrawThread();//no more edits are applied until it is restarted
+        //Every edit is already queued to be written to the journal. Fold them into a new save in the background (after they are
+        //written), so that stopping doesn't wait on the disk and the next start doesn't have to replay them.
+        if (mJournal.hasUnsavedEdits())
+            mJournal.save(mCityModel.snapshot());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        Log.v(TAG, "ON DESTROY");
+
+        if (mJournal != null)
+            mJournal.close();
     }
 
     @Override
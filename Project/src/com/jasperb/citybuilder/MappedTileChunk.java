@@ -0,0 +1,209 @@
+package com.jasperb.citybuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+import com.jasperb.citybuilder.util.FileStreamUtils;
+
+/**
+ * Chunk whose tiles are read out of the saved image of the chunk within a memory mapped save, so restoring the chunk
+ * doesn't copy anything. A compressed image (see CityModel.save) is inflated onto the heap when a tile is first read, and is
+ * kept so that the chunk can be saved again without compressing it. The image is read-only, so the first write that changes
+ * a tile copies the tiles into a regular chunk of the given TILE_STORAGE, which all reads and writes are passed on to from then on.
+ * Only the first terrain mod of each tile lives in the image, the rest are kept like those of any other chunk.
+ */
+class MappedTileChunk extends TileChunk {
+    /**
+     * String used for identifying this class
+     */
+    private static final String TAG = "MappedTileChunk";
+
+    private final ByteBuffer mCompressed;//compressed image of the chunk within the mapping, null if the image isn't compressed
+    //Image of the chunk (within the mapping, or inflated from mCompressed), null until first read if it is compressed
+    //Only ever read with absolute gets, so it can be shared between threads (e.g. the draw thread and a snapshot being saved)
+    private volatile ByteBuffer mTiles;
+    private int mStorage;//TILE_STORAGE layout to copy into
+    private TileChunk mExpanded = null;//the copy of the chunk, null until a tile is changed
+
+    /**
+     * @param image
+     *            buffer holding the image of the chunk (see TileChunk), starting at index 0
+     * @param compressed
+     *            true if the image is compressed, in which case the buffer holds exactly the compressed image
+     * @param storage
+     *            the TILE_STORAGE layout to copy the tiles into once they are changed
+     */
+    public MappedTileChunk(ByteBuffer image, boolean compressed, int storage) {
+        if (compressed) {
+            mCompressed = image;
+            mTiles = null;
+        } else {
+            mCompressed = null;
+            mTiles = image;
+        }
+        mStorage = storage;
+    }
+
+    /**
+     * @return the compressed image of the chunk, or null if the image isn't compressed or a tile has been changed
+     */
+    public byte[] getCompressedImage() {
+        if (mCompressed == null || mExpanded != null)
+            return null;
+        byte[] compressed = new byte[mCompressed.capacity()];
+        mCompressed.duplicate().get(compressed);
+        return compressed;
+    }
+
+    /**
+     * @return the image of the chunk, inflating it first if this is the first read
+     */
+    private ByteBuffer getTiles() {
+        ByteBuffer tiles = mTiles;
+        return tiles != null ? tiles : inflate();
+    }
+
+    private synchronized ByteBuffer inflate() {
+        if (mTiles != null)
+            return mTiles;//inflated by another thread in the meantime
+        byte[] compressed = new byte[mCompressed.capacity()];
+        mCompressed.duplicate().get(compressed);
+        byte[] image = new byte[IMAGE_SIZE];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int size = 0;
+            while (size < IMAGE_SIZE && !inflater.finished()) {
+                int inflated = inflater.inflate(image, size, IMAGE_SIZE - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                size += inflated;
+            }
+            if (size != IMAGE_SIZE)
+                throw new DataFormatException("Truncated chunk image");
+            mTiles = ByteBuffer.wrap(image);
+        } catch (DataFormatException e) {
+            //The rest of the city was restored long ago, so only this chunk is lost
+            Log.d(TAG, "Malformed chunk image: " + e.getLocalizedMessage());
+            ByteBuffer blank = ByteBuffer.allocate(IMAGE_SIZE);
+            TileChunk.create(mStorage).getImage(blank);
+            mTiles = blank;
+        } finally {
+            inflater.end();//free the native memory now rather than when it is garbage collected
+        }
+        return mTiles;
+    }
+
+    @Override
+    public TileChunk getExpandedChunk() {
+        return mExpanded;
+    }
+
+    @Override
+    public int getUniformTerrain() {
+        return mExpanded == null ? -1 : mExpanded.getUniformTerrain();
+    }
+
+    /**
+     * Copy the tiles into a regular chunk that can be written to.
+     */
+    private TileChunk expand() {
+        if (mExpanded == null)
+            mExpanded = copy(mStorage);
+        return mExpanded;
+    }
+
+    @Override
+    public byte getTerrain(int index) {
+        return mExpanded == null ? getTiles().get(IMAGE_TERRAIN_OFFSET + index) : mExpanded.getTerrain(index);
+    }
+
+    @Override
+    public void setTerrain(int index, byte terrain) {
+        if (mExpanded != null || terrain != getTerrain(index))
+            expand().setTerrain(index, terrain);
+    }
+
+    @Override
+    public byte getMod(int index, int modIndex) {
+        if (mExpanded != null)
+            return mExpanded.getMod(index, modIndex);
+        byte firstMod = getTiles().get(IMAGE_MOD_OFFSET + index);
+        if (modIndex == 0 || firstMod == DEFAULT_MOD)
+            return firstMod;
+        return getExtraMod(index, modIndex);
+    }
+
+    @Override
+    public void setMod(int index, int modIndex, byte mod) {
+        if (mExpanded != null) {
+            mExpanded.setMod(index, modIndex, mod);
+        } else if (modIndex != 0) {
+            setExtraMod(index, modIndex, mod);//extra mods aren't part of the image, so there is nothing to copy
+        } else if (mod != getMod(index, 0)) {
+            expand().setMod(index, modIndex, mod);
+        }
+    }
+
+    @Override
+    public byte getBlend(int index) {
+        return mExpanded == null ? getTiles().get(IMAGE_BLEND_OFFSET + index) : mExpanded.getBlend(index);
+    }
+
+    @Override
+    public void setBlend(int index, byte blend) {
+        if (mExpanded != null || blend != getBlend(index))
+            expand().setBlend(index, blend);
+    }
+
+    @Override
+    public int getObjectID(int index) {
+        return mExpanded == null ? getTiles().getInt(IMAGE_OBJECT_OFFSET + index * 4) : mExpanded.getObjectID(index);
+    }
+
+    @Override
+    public void setObjectID(int index, int id) {
+        if (mExpanded != null || id != getObjectID(index))
+            expand().setObjectID(index, id);
+    }
+
+    @Override
+    public void writeImage(FileStreamUtils stream, ByteBuffer image) throws IOException {
+        if (mExpanded != null) {
+            mExpanded.writeImage(stream, image);
+        } else {
+            //The tiles are already in the saved layout, so write them out directly
+            ByteBuffer tiles = getTiles().duplicate();
+            tiles.clear();
+            tiles.limit(IMAGE_SIZE);
+            stream.write(tiles);
+        }
+    }
+
+    @Override
+    public void getImage(ByteBuffer image) {
+        if (mExpanded != null) {
+            mExpanded.getImage(image);
+        } else {
+            ByteBuffer tiles = getTiles().duplicate();
+            tiles.clear();
+            tiles.limit(IMAGE_SIZE);
+            image.clear();
+            image.put(tiles);
+            image.flip();
+        }
+    }
+
+    @Override
+    protected void writeExtraMods(FileStreamUtils stream) throws IOException {
+        if (mExpanded != null) {
+            mExpanded.writeExtraMods(stream);
+        } else {
+            super.writeExtraMods(stream);
+        }
+    }
+}
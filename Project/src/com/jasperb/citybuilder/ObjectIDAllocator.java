@@ -0,0 +1,164 @@
+package com.jasperb.citybuilder;
+
+import java.util.Arrays;
+
+/**
+ * Hands out object IDs, keeping the set of used IDs as a bitset (one bit per ID, 64 IDs per word).
+ * The lowest free ID is always handed out first, and a hint of the first word that may contain a free ID
+ * means allocating doesn't rescan the words that are known to be full.
+ * The bitset starts small and doubles whenever it runs out of free IDs, up to the limit.
+ *
+ * Not thread-safe, just like the rest of the city model.
+ */
+public class ObjectIDAllocator {
+    private static final int WORD_SHIFT = 6;
+    private static final int WORD_MASK = (1 << WORD_SHIFT) - 1;
+    private static final long FULL_WORD = -1L;
+
+    private final int mLimit;//number of IDs available
+    private long[] mWords;//bit per ID, set if the ID is used
+    private int mCount = 0;//number of used IDs
+    private int mFreeWordHint = 0;//no word before this one has a free ID
+
+    /**
+     * @param initialCapacity
+     *            the number of IDs to make room for up front
+     * @param limit
+     *            the number of IDs available, IDs range from 0 to limit - 1
+     */
+    public ObjectIDAllocator(int initialCapacity, int limit) {
+        mLimit = limit;
+        mWords = new long[(Math.min(initialCapacity, limit) + WORD_MASK) >> WORD_SHIFT];
+    }
+
+    /**
+     * @return an allocator with the same IDs used, which is independent of this one
+     */
+    public ObjectIDAllocator copy() {
+        ObjectIDAllocator copy = new ObjectIDAllocator(0, mLimit);
+        copy.mWords = mWords.clone();
+        copy.mCount = mCount;
+        copy.mFreeWordHint = mFreeWordHint;
+        return copy;
+    }
+
+    /**
+     * @return the number of used IDs
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the number of IDs available
+     */
+    public int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @return the number of IDs the bitset currently has room for, all IDs from here on are unused
+     */
+    public int getCapacity() {
+        return Math.min(mWords.length << WORD_SHIFT, mLimit);
+    }
+
+    public boolean isUsed(int id) {
+        int word = id >> WORD_SHIFT;
+        return id >= 0 && word < mWords.length && (mWords[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * Mark the lowest unused ID as used.
+     *
+     * @return the ID, or -1 if all IDs are in use
+     */
+    public int allocate() {
+        if (mCount == mLimit)
+            return -1;
+        while (mFreeWordHint < mWords.length && mWords[mFreeWordHint] == FULL_WORD) {
+            mFreeWordHint++;
+        }
+        if (mFreeWordHint == mWords.length)
+            grow(mFreeWordHint + 1);
+        int id = (mFreeWordHint << WORD_SHIFT) + Long.numberOfTrailingZeros(~mWords[mFreeWordHint]);
+        if (id >= mLimit)//Only the padding bits of the last word are free
+            throw new IllegalStateException("There should be at least one free Object ID"); //This shouldn't be possible
+        mWords[mFreeWordHint] |= 1L << id;
+        mCount++;
+        return id;
+    }
+
+    /**
+     * Mark several unused IDs as used at once, lowest first. Nothing is allocated unless all of them can be.
+     *
+     * @param ids
+     *            filled with the allocated IDs
+     * @param count
+     *            the number of IDs to allocate
+     * @return true if the IDs were allocated, false if there aren't enough unused IDs
+     */
+    public boolean allocate(int[] ids, int count) {
+        if (count > mLimit - mCount)
+            return false;
+        int found = 0;
+        for (int word = mFreeWordHint; found < count; word++) {
+            if (word == mWords.length)
+                grow(word + 1);
+            long free = ~mWords[word];
+            while (free != 0 && found < count) {
+                int bit = Long.numberOfTrailingZeros(free);
+                free &= free - 1;
+                ids[found++] = (word << WORD_SHIFT) + bit;
+                mWords[word] |= 1L << bit;
+            }
+        }
+        mCount += count;
+        return true;
+    }
+
+    /**
+     * Mark a specific ID as used, e.g. when restoring objects that already have an ID.
+     *
+     * @return true if the ID was unused, false if it was used or isn't below the limit
+     */
+    public boolean reserve(int id) {
+        if (id < 0 || id >= mLimit || isUsed(id))
+            return false;
+        if ((id >> WORD_SHIFT) >= mWords.length)
+            grow((id >> WORD_SHIFT) + 1);
+        mWords[id >> WORD_SHIFT] |= 1L << id;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Mark an ID as unused.
+     */
+    public void free(int id) {
+        if (!isUsed(id))
+            return;
+        int word = id >> WORD_SHIFT;
+        mWords[word] &= ~(1L << id);
+        mCount--;
+        if (word < mFreeWordHint)
+            mFreeWordHint = word;
+    }
+
+    /**
+     * Mark all IDs as unused.
+     */
+    public void clear() {
+        Arrays.fill(mWords, 0);
+        mCount = 0;
+        mFreeWordHint = 0;
+    }
+
+    /**
+     * Make room for at least the given number of words, doubling the current number of words if that is more
+     */
+    private void grow(int wordCount) {
+        int maxWords = (mLimit + WORD_MASK) >> WORD_SHIFT;
+        mWords = Arrays.copyOf(mWords, Math.min(maxWords, Math.max(wordCount, mWords.length * 2)));
+    }
+}
@@ -0,0 +1,346 @@
+package com.jasperb.citybuilder;
+
+import java.util.Arrays;
+
+/**
+ * Object slices of a city model, kept as parallel arrays of primitives instead of individual objects.
+ * The arrays double in size whenever they run out of room.
+ * Slices are bucketed by column, and each bucket is sorted in the order the slices should be drawn in,
+ * so drawing all slices is a matter of walking the buckets column by column.
+ *
+ * A slice is referred to by a handle (an index into the arrays), which stays valid until the slice is removed.
+ * Not thread-safe, just like the rest of the city model.
+ */
+public class ObjectSliceStore {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int INITIAL_BUCKET_CAPACITY = 4;
+
+    //Slice properties by handle
+    private int[] mRows;//maximum row of the slice (not the object)
+    private int[] mCols;//minimum column of the slice (not the object)
+    private int[] mIds;//id of the object
+    private short[] mTypes;//object type
+    private byte[] mSliceIndexes;//0-based, indicates which slice it is
+
+    private int mHandleLimit = 0;//handles below this have been used at some point
+    private int[] mFreeHandles = new int[INITIAL_CAPACITY];//handles below mHandleLimit that are not in use
+    private int mFreeCount = 0;
+    private int mSliceCount = 0;
+
+    private int[][] mBuckets;//handles of the slices of each column, in the order to draw them
+    private int[] mBucketSizes;
+
+    /**
+     * @param width
+     *            the number of columns of the city model
+     */
+    public ObjectSliceStore(int width) {
+        mRows = new int[INITIAL_CAPACITY];
+        mCols = new int[INITIAL_CAPACITY];
+        mIds = new int[INITIAL_CAPACITY];
+        mTypes = new short[INITIAL_CAPACITY];
+        mSliceIndexes = new byte[INITIAL_CAPACITY];
+        mBuckets = new int[width][];
+        mBucketSizes = new int[width];
+    }
+
+    /**
+     * @return a store with the same slices (under the same handles), which is independent of this one
+     */
+    public ObjectSliceStore copy() {
+        ObjectSliceStore copy = new ObjectSliceStore(0);
+        copy.mRows = mRows.clone();
+        copy.mCols = mCols.clone();
+        copy.mIds = mIds.clone();
+        copy.mTypes = mTypes.clone();
+        copy.mSliceIndexes = mSliceIndexes.clone();
+        copy.mHandleLimit = mHandleLimit;
+        copy.mFreeHandles = mFreeHandles.clone();
+        copy.mFreeCount = mFreeCount;
+        copy.mSliceCount = mSliceCount;
+        copy.mBuckets = new int[mBuckets.length][];
+        for (int col = 0; col < mBuckets.length; col++) {
+            if (mBuckets[col] != null)
+                copy.mBuckets[col] = mBuckets[col].clone();
+        }
+        copy.mBucketSizes = mBucketSizes.clone();
+        return copy;
+    }
+
+    /**
+     * @return the total number of slices
+     */
+    public int getSliceCount() {
+        return mSliceCount;
+    }
+
+    /**
+     * @return the number of columns that slices can be in
+     */
+    public int getColumnCount() {
+        return mBuckets.length;
+    }
+
+    /**
+     * @return the number of slices in a column
+     */
+    public int getSliceCount(int col) {
+        return mBucketSizes[col];
+    }
+
+    /**
+     * Get a slice of a column.
+     *
+     * @param col
+     * @param position
+     *            the position of the slice in the draw order of the column
+     * @return the handle of the slice
+     */
+    public int getSlice(int col, int position) {
+        return mBuckets[col][position];
+    }
+
+    public int getRow(int slice) {
+        return mRows[slice];
+    }
+
+    public int getCol(int slice) {
+        return mCols[slice];
+    }
+
+    public int getId(int slice) {
+        return mIds[slice];
+    }
+
+    public int getType(int slice) {
+        return mTypes[slice];
+    }
+
+    public int getSliceIndex(int slice) {
+        return mSliceIndexes[slice];
+    }
+
+    /**
+     * Find where the slices of a new object belong in the draw order of a column,
+     * which is after every slice of the column whose row is not greater than the minimum row of the new object.
+     *
+     * @param col
+     * @param objectRow
+     *            the minimum row of the new object
+     * @return the position to insert the object's slices at
+     */
+    public int findInsertPosition(int col, int objectRow) {
+        int[] bucket = mBuckets[col];
+        int low = 0, high = mBucketSizes[col];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mRows[bucket[mid]] > objectRow) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the first slice of a column that is not above a given row.
+     * Objects never overlap, so the slices of a column are sorted by row as well as in draw order.
+     *
+     * @param col
+     * @param row
+     * @return the position of the first slice whose row is at least the given row (or the number of slices in the column)
+     */
+    public int findFirstSlice(int col, int row) {
+        return findInsertPosition(col, row - 1);
+    }
+
+    /**
+     * Insert a slice into the draw order of its column.
+     *
+     * @param position
+     *            the position within the column (see findInsertPosition)
+     * @return the handle of the new slice
+     */
+    public int insert(int position, int row, int col, int id, int type, int sliceIndex) {
+        int slice = allocateHandle();
+        mRows[slice] = row;
+        mCols[slice] = col;
+        mIds[slice] = id;
+        mTypes[slice] = (short) type;
+        mSliceIndexes[slice] = (byte) sliceIndex;
+        addToBucket(col, position, slice);
+        return slice;
+    }
+
+    /**
+     * Insert several slices into the draw order of a column in a single pass over the column.
+     * Each new slice is placed as if by insert at findInsertPosition(col, objectRow), with new slices that share a position
+     * kept in the order given.
+     *
+     * @param col
+     * @param count
+     *            the number of slices to insert
+     * @param objectRows
+     *            the minimum row of the object of each new slice, must be in ascending order
+     * @param rows
+     * @param ids
+     * @param types
+     * @param sliceIndexes
+     */
+    public void insertAll(int col, int count, int[] objectRows, int[] rows, int[] ids, int[] types, int[] sliceIndexes) {
+        int size = mBucketSizes[col];
+        int[] bucket = mBuckets[col];
+        if (bucket == null || size + count > bucket.length) {
+            int capacity = Math.max(INITIAL_BUCKET_CAPACITY, Integer.highestOneBit(size + count) << 1);
+            bucket = bucket == null ? new int[capacity] : Arrays.copyOf(bucket, capacity);
+            mBuckets[col] = bucket;
+        }
+        //Merge from the back, so that every existing slice is moved at most once
+        int existing = size - 1;
+        for (int next = count - 1, position = size + count - 1; next >= 0; position--) {
+            if (existing >= 0 && mRows[bucket[existing]] > objectRows[next]) {
+                bucket[position] = bucket[existing--];
+            } else {
+                int slice = allocateHandle();
+                mRows[slice] = rows[next];
+                mCols[slice] = col;
+                mIds[slice] = ids[next];
+                mTypes[slice] = (short) types[next];
+                mSliceIndexes[slice] = (byte) sliceIndexes[next];
+                bucket[position] = slice;
+                next--;
+            }
+        }
+        mBucketSizes[col] = size + count;
+        mSliceCount += count;
+    }
+
+    /**
+     * Add a slice to the end of the draw order of its column.
+     *
+     * @return the handle of the new slice
+     */
+    public int append(int row, int col, int id, int type, int sliceIndex) {
+        return insert(mBucketSizes[col], row, col, id, type, sliceIndex);
+    }
+
+    /**
+     * Remove a slice from a column.
+     *
+     * @param col
+     * @param position
+     *            the position of the slice in the draw order of the column
+     */
+    public void remove(int col, int position) {
+        freeHandle(detach(col, position));
+    }
+
+    /**
+     * Remove every slice of a column that belongs to one of several objects, in a single pass over the column.
+     * 
+     * @param col
+     * @param sortedIds
+     *            the IDs of the objects, in ascending order
+     * @param idCount
+     *            the number of IDs
+     * @return the number of slices removed
+     */
+    public int removeAll(int col, int[] sortedIds, int idCount) {
+        int[] bucket = mBuckets[col];
+        int size = mBucketSizes[col];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int slice = bucket[i];
+            if (Arrays.binarySearch(sortedIds, 0, idCount, mIds[slice]) >= 0) {
+                freeHandle(slice);
+            } else {
+                bucket[kept++] = slice;
+            }
+        }
+        mBucketSizes[col] = kept;
+        mSliceCount -= size - kept;
+        return size - kept;
+    }
+
+    /**
+     * Take a slice out of the draw order of its column without giving up its handle, so that it can be put back with attach.
+     * The slice doesn't count towards the number of slices while it is detached.
+     * 
+     * @param col
+     * @param position
+     *            the position of the slice in the draw order of the column
+     * @return the handle of the slice
+     */
+    public int detach(int col, int position) {
+        int[] bucket = mBuckets[col];
+        int size = mBucketSizes[col] - 1;
+        int slice = bucket[position];
+        System.arraycopy(bucket, position + 1, bucket, position, size - position);
+        mBucketSizes[col] = size;
+        mSliceCount--;
+        return slice;
+    }
+
+    /**
+     * Put a detached slice back into the draw order of a column, moving it to a new row and column.
+     * 
+     * @param position
+     *            the position within the column (see findInsertPosition)
+     * @param slice
+     *            the handle returned by detach
+     * @param row
+     * @param col
+     */
+    public void attach(int position, int slice, int row, int col) {
+        mRows[slice] = row;
+        mCols[slice] = col;
+        addToBucket(col, position, slice);
+    }
+
+    /**
+     * Remove all slices.
+     */
+    public void clear() {
+        Arrays.fill(mBucketSizes, 0);
+        mHandleLimit = 0;
+        mFreeCount = 0;
+        mSliceCount = 0;
+    }
+
+    private void addToBucket(int col, int position, int slice) {
+        int[] bucket = mBuckets[col];
+        int size = mBucketSizes[col];
+        if (bucket == null) {
+            bucket = new int[INITIAL_BUCKET_CAPACITY];
+            mBuckets[col] = bucket;
+        } else if (size == bucket.length) {
+            bucket = Arrays.copyOf(bucket, size * 2);
+            mBuckets[col] = bucket;
+        }
+        System.arraycopy(bucket, position, bucket, position + 1, size - position);
+        bucket[position] = slice;
+        mBucketSizes[col] = size + 1;
+        mSliceCount++;
+    }
+
+    private void freeHandle(int slice) {
+        if (mFreeCount == mFreeHandles.length)
+            mFreeHandles = Arrays.copyOf(mFreeHandles, mFreeCount * 2);
+        mFreeHandles[mFreeCount++] = slice;
+    }
+
+    private int allocateHandle() {
+        if (mFreeCount > 0)
+            return mFreeHandles[--mFreeCount];
+        if (mHandleLimit == mRows.length) {
+            int capacity = mHandleLimit * 2;
+            mRows = Arrays.copyOf(mRows, capacity);
+            mCols = Arrays.copyOf(mCols, capacity);
+            mIds = Arrays.copyOf(mIds, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mSliceIndexes = Arrays.copyOf(mSliceIndexes, capacity);
+        }
+        return mHandleLimit++;
+    }
+}
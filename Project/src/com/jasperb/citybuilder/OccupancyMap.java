@@ -0,0 +1,171 @@
+package com.jasperb.citybuilder;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which tiles of a city model are covered by objects, so that rectangles of tiles can be checked without visiting each tile.
+ * Each tile is a bit (column by column, 64 rows per word), and the number of covered tiles is counted per chunk.
+ * Counts over a rectangle come from summed-area tables: one over the chunk counts for the chunks entirely within the rectangle,
+ * and one per chunk for the chunks along its edges. The tables are only rebuilt when queried after a change.
+ *
+ * Not thread-safe, just like the rest of the city model.
+ */
+class OccupancyMap {
+    private static final int MASK = Constant.CHUNK_SIZE - 1;
+    private static final int TABLE_SIZE = Constant.CHUNK_SIZE + 1;//summed-area tables have an extra row and column of zeros
+
+    private final int mWidth, mHeight;
+    private final int mRowWords;//words per column of tiles
+    private final long[] mBits;//bit per tile, set if the tile is covered
+    private final int mChunkColumns, mChunkRows;
+    private final int[] mChunkCounts;//covered tiles per chunk (column by column, like the chunks of CityModel)
+    private final short[][] mChunkTables;//summed-area table of each chunk's tiles, null until needed
+    private final boolean[] mStaleChunkTables;//true if a chunk's tiles changed since its table was built
+    private final int[] mCountTable;//summed-area table of mChunkCounts
+    private boolean mStaleCountTable = false;
+
+    public OccupancyMap(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mRowWords = (height + 63) >> 6;
+        mBits = new long[width * mRowWords];
+        mChunkColumns = (width + MASK) >> Constant.CHUNK_SIZE_SHIFT;
+        mChunkRows = (height + MASK) >> Constant.CHUNK_SIZE_SHIFT;
+        mChunkCounts = new int[mChunkColumns * mChunkRows];
+        mChunkTables = new short[mChunkColumns * mChunkRows][];
+        mStaleChunkTables = new boolean[mChunkColumns * mChunkRows];
+        mCountTable = new int[(mChunkColumns + 1) * (mChunkRows + 1)];
+    }
+
+    /**
+     * @return a map with the same tiles covered, which is independent of this one
+     */
+    public OccupancyMap copy() {
+        OccupancyMap copy = new OccupancyMap(mWidth, mHeight);
+        System.arraycopy(mBits, 0, copy.mBits, 0, mBits.length);
+        System.arraycopy(mChunkCounts, 0, copy.mChunkCounts, 0, mChunkCounts.length);
+        copy.mStaleCountTable = true;//the chunk tables are built when first needed, like those of a new map
+        return copy;
+    }
+
+    public boolean isCovered(int row, int col) {
+        return (mBits[col * mRowWords + (row >> 6)] & (1L << row)) != 0;
+    }
+
+    /**
+     * Mark a rectangle of tiles as covered or not covered.
+     */
+    public void set(int startRow, int startCol, int endRow, int endCol, boolean covered) {
+        for (int col = startCol; col <= endCol; col++) {
+            for (int row = startRow; row <= endRow; row++) {
+                int word = col * mRowWords + (row >> 6);
+                long bit = 1L << row;
+                if (((mBits[word] & bit) != 0) == covered)
+                    continue;
+                mBits[word] ^= bit;
+                int chunk = (col >> Constant.CHUNK_SIZE_SHIFT) * mChunkRows + (row >> Constant.CHUNK_SIZE_SHIFT);
+                mChunkCounts[chunk] += covered ? 1 : -1;
+                mStaleChunkTables[chunk] = true;
+                mStaleCountTable = true;
+            }
+        }
+    }
+
+    /**
+     * Mark every tile as not covered.
+     */
+    public void clear() {
+        Arrays.fill(mBits, 0);
+        Arrays.fill(mChunkCounts, 0);
+        Arrays.fill(mChunkTables, null);
+        Arrays.fill(mStaleChunkTables, false);
+        Arrays.fill(mCountTable, 0);
+        mStaleCountTable = false;
+    }
+
+    /**
+     * Count the covered tiles within a rectangle of tiles, which must lie within the city model.
+     */
+    public int countCovered(int startRow, int startCol, int endRow, int endCol) {
+        int firstChunkCol = startCol >> Constant.CHUNK_SIZE_SHIFT, lastChunkCol = endCol >> Constant.CHUNK_SIZE_SHIFT;
+        int firstChunkRow = startRow >> Constant.CHUNK_SIZE_SHIFT, lastChunkRow = endRow >> Constant.CHUNK_SIZE_SHIFT;
+
+        //Find the block of chunks that lie entirely within the rectangle (chunks on the far edges of the model are only partially
+        //within the model, but the tiles outside of the model are never covered)
+        int firstInnerCol = (startCol & MASK) == 0 ? firstChunkCol : firstChunkCol + 1;
+        int lastInnerCol = endCol == Math.min(endCol | MASK, mWidth - 1) ? lastChunkCol : lastChunkCol - 1;
+        int firstInnerRow = (startRow & MASK) == 0 ? firstChunkRow : firstChunkRow + 1;
+        int lastInnerRow = endRow == Math.min(endRow | MASK, mHeight - 1) ? lastChunkRow : lastChunkRow - 1;
+
+        int count = 0;
+        boolean hasInner = firstInnerCol <= lastInnerCol && firstInnerRow <= lastInnerRow;
+        if (hasInner) {
+            if (mStaleCountTable)
+                buildCountTable();
+            count += sum(mCountTable, mChunkRows + 1, firstInnerRow, firstInnerCol, lastInnerRow, lastInnerCol);
+        }
+
+        //Add the chunks along the edges of the rectangle
+        for (int chunkCol = firstChunkCol; chunkCol <= lastChunkCol; chunkCol++) {
+            boolean innerCol = hasInner && chunkCol >= firstInnerCol && chunkCol <= lastInnerCol;
+            for (int chunkRow = firstChunkRow; chunkRow <= lastChunkRow; chunkRow++) {
+                if (innerCol && chunkRow == firstInnerRow) {
+                    chunkRow = lastInnerRow;//skip the chunks already counted
+                    continue;
+                }
+                int chunk = chunkCol * mChunkRows + chunkRow;
+                if (mChunkCounts[chunk] == 0)
+                    continue;
+                if (mChunkTables[chunk] == null || mStaleChunkTables[chunk])
+                    buildChunkTable(chunkCol, chunkRow);
+                int baseCol = chunkCol << Constant.CHUNK_SIZE_SHIFT, baseRow = chunkRow << Constant.CHUNK_SIZE_SHIFT;
+                count += sum(mChunkTables[chunk], TABLE_SIZE, Math.max(startRow, baseRow) - baseRow, Math.max(startCol, baseCol) - baseCol,
+                        Math.min(endRow, baseRow + MASK) - baseRow, Math.min(endCol, baseCol + MASK) - baseCol);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sum a rectangle of a summed-area table laid out column by column
+     */
+    private static int sum(int[] table, int tableRows, int startRow, int startCol, int endRow, int endCol) {
+        return table[(endCol + 1) * tableRows + endRow + 1] - table[startCol * tableRows + endRow + 1]
+                - table[(endCol + 1) * tableRows + startRow] + table[startCol * tableRows + startRow];
+    }
+
+    private static int sum(short[] table, int tableRows, int startRow, int startCol, int endRow, int endCol) {
+        return table[(endCol + 1) * tableRows + endRow + 1] - table[startCol * tableRows + endRow + 1]
+                - table[(endCol + 1) * tableRows + startRow] + table[startCol * tableRows + startRow];
+    }
+
+    private void buildCountTable() {
+        int tableRows = mChunkRows + 1;
+        for (int col = 0; col < mChunkColumns; col++) {
+            for (int row = 0; row < mChunkRows; row++) {
+                mCountTable[(col + 1) * tableRows + row + 1] = mChunkCounts[col * mChunkRows + row]
+                        + mCountTable[col * tableRows + row + 1] + mCountTable[(col + 1) * tableRows + row]
+                        - mCountTable[col * tableRows + row];
+            }
+        }
+        mStaleCountTable = false;
+    }
+
+    private void buildChunkTable(int chunkCol, int chunkRow) {
+        int chunk = chunkCol * mChunkRows + chunkRow;
+        short[] table = mChunkTables[chunk];
+        if (table == null) {
+            table = new short[TABLE_SIZE * TABLE_SIZE];
+            mChunkTables[chunk] = table;
+        }
+        int baseCol = chunkCol << Constant.CHUNK_SIZE_SHIFT, baseRow = chunkRow << Constant.CHUNK_SIZE_SHIFT;
+        for (int col = 0; col < Constant.CHUNK_SIZE; col++) {
+            for (int row = 0; row < Constant.CHUNK_SIZE; row++) {
+                boolean covered = baseCol + col < mWidth && baseRow + row < mHeight && isCovered(baseRow + row, baseCol + col);
+                table[(col + 1) * TABLE_SIZE + row + 1] = (short) ((covered ? 1 : 0) + table[col * TABLE_SIZE + row + 1]
+                        + table[(col + 1) * TABLE_SIZE + row] - table[col * TABLE_SIZE + row]);
+            }
+        }
+        mStaleChunkTables[chunk] = false;
+    }
+}
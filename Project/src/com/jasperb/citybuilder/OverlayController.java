@@ -178,12 +178,13 @@ public class OverlayController implements Observer {
                                 Toast.makeText(mState.NS_Activity, "Error: Placement Failed. Code: " + objID, Toast.LENGTH_LONG).show();
                             }
                         } else if (mState.UIS_Tool == OBJECT_TOOLS.SELECT) {
-                            int objID = mState.addObject(mState.UIS_DestRow, mState.UIS_DestCol, mState.UIS_SelectedObjectType,
-                                    mState.UIS_SelectedObjectID);
+                            int objID = mState.moveObject(mState.UIS_SelectedObjectID, mState.UIS_DestRow, mState.UIS_DestCol);
                             if (objID >= 0) {
                                 mState.UIS_SelectedObjectID = -1;
                                 mState.UIS_DestCol = -1;
                                 mState.UIS_DestRow = -1;
+                            } else {
+                                Toast.makeText(mState.NS_Activity, "Error: Move Failed. Code: " + objID, Toast.LENGTH_LONG).show();
                             }
                         }
                     }
@@ -204,7 +205,13 @@ public class OverlayController implements Observer {
 
             } else if (v.equals(mDeleteButton)) {
                 synchronized (mState) {
-                    mState.UIS_CityModel.freeObjectID(mState.UIS_SelectedObjectID);
+                    if (mState.UIS_Mode == CITY_VIEW_MODES.EDIT_TERRAIN && mState.UIS_Tool == TERRAIN_TOOLS.SELECT) {
+                        mState.removeSelectedObjects();
+                        mState.resetSelectTool();
+                    } else if (mState.UIS_SelectedObjectID != -1) {
+                        mState.removeObject(mState.UIS_SelectedObjectID);
+                        mState.UIS_CityModel.freeObjectID(mState.UIS_SelectedObjectID);
+                    }
                     mState.UIS_SelectedObjectID = -1;
                     mState.UIS_DestCol = -1;
                     mState.UIS_DestRow = -1;
@@ -339,11 +346,12 @@ public class OverlayController implements Observer {
                 if (mState.UIS_FirstSelectedRow != -1) {
                     mAcceptButton.setVisibility(View.VISIBLE);
                     mCancelButton.setVisibility(View.VISIBLE);
+                    mDeleteButton.setVisibility(View.VISIBLE);//clears the buildings within the selection
                 } else {
                     mAcceptButton.setVisibility(View.GONE);
                     mCancelButton.setVisibility(View.GONE);
+                    mDeleteButton.setVisibility(View.GONE);
                 }
-                mDeleteButton.setVisibility(View.GONE);
                 break;
             case TERRAIN_TOOLS.EYEDROPPER:
                 mMoveButtons.setVisibility(View.GONE);
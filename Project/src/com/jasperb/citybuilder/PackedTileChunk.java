@@ -0,0 +1,86 @@
+package com.jasperb.citybuilder;
+
+import java.util.Arrays;
+
+/**
+ * Chunk that packs each tile into a single int, so that reading all of the properties of a tile touches one slot of memory.
+ * Only the first terrain mod of a tile is kept in its int. Tiles with more mods than that keep the rest in the overflow lists
+ * of TileChunk, which is flagged in the int so that tiles with at most one mod never look there.
+ *
+ * Bit layout of a tile (from least significant):
+ * 4 bits terrain | 1 bit blend | 1 bit overflow | 6 bits first terrain mod | 20 bits object ID
+ */
+class PackedTileChunk extends TileChunk {
+    private static final int TERRAIN_MASK = 0xF;//TERRAIN.count must fit in these bits
+    private static final int BLEND_BIT = 1 << 4;
+    private static final int OVERFLOW_BIT = 1 << 5;//set if the tile has more than one mod
+    private static final int MOD_SHIFT = 6;
+    private static final int MOD_MASK = 0x3F << MOD_SHIFT;//TERRAIN_MODS.NONE must fit in these bits
+    private static final int OBJECT_SHIFT = 12;//Constant.OBJECT_LIMIT must fit in the remaining (signed) bits
+
+    private static final int DEFAULT_TILE = (DEFAULT_TERRAIN & TERRAIN_MASK) | (DEFAULT_BLEND != 0 ? BLEND_BIT : 0)
+            | (DEFAULT_MOD << MOD_SHIFT) | (DEFAULT_OBJECT_ID << OBJECT_SHIFT);
+
+    private int[] mTiles = new int[Constant.CHUNK_AREA];
+
+    public PackedTileChunk() {
+        Arrays.fill(mTiles, DEFAULT_TILE);
+    }
+
+    @Override
+    public byte getTerrain(int index) {
+        return (byte) (mTiles[index] & TERRAIN_MASK);
+    }
+
+    @Override
+    public void setTerrain(int index, byte terrain) {
+        mTiles[index] = (mTiles[index] & ~TERRAIN_MASK) | (terrain & TERRAIN_MASK);
+    }
+
+    @Override
+    public byte getMod(int index, int modIndex) {
+        int tile = mTiles[index];
+        byte firstMod = (byte) ((tile & MOD_MASK) >>> MOD_SHIFT);
+        if (modIndex == 0 || firstMod == DEFAULT_MOD)
+            return firstMod;
+        if ((tile & OVERFLOW_BIT) == 0)
+            return DEFAULT_MOD;
+        return getExtraMod(index, modIndex);
+    }
+
+    @Override
+    public void setMod(int index, int modIndex, byte mod) {
+        int tile = mTiles[index];
+        if (modIndex == 0) {
+            mTiles[index] = (tile & ~MOD_MASK) | ((mod << MOD_SHIFT) & MOD_MASK);
+        } else if (setExtraMod(index, modIndex, mod)) {
+            mTiles[index] = tile | OVERFLOW_BIT;
+        } else {
+            mTiles[index] = tile & ~OVERFLOW_BIT;
+        }
+    }
+
+    @Override
+    public byte getBlend(int index) {
+        return (byte) ((mTiles[index] & BLEND_BIT) != 0 ? 1 : 0);
+    }
+
+    @Override
+    public void setBlend(int index, byte blend) {
+        if (blend != 0) {
+            mTiles[index] |= BLEND_BIT;
+        } else {
+            mTiles[index] &= ~BLEND_BIT;
+        }
+    }
+
+    @Override
+    public int getObjectID(int index) {
+        return mTiles[index] >> OBJECT_SHIFT;
+    }
+
+    @Override
+    public void setObjectID(int index, int id) {
+        mTiles[index] = (mTiles[index] & ((1 << OBJECT_SHIFT) - 1)) | (id << OBJECT_SHIFT);
+    }
+}
@@ -4,12 +4,15 @@ import java.util.LinkedList;
 
 import android.app.Activity;
 import android.widget.OverScroller;
+import android.widget.Toast;
 
 import com.jasperb.citybuilder.Constant.BRUSH_TYPES;
 import com.jasperb.citybuilder.Constant.CITY_VIEW_MODES;
 import com.jasperb.citybuilder.Constant.OBJECTS;
+import com.jasperb.citybuilder.Constant.OBJECT_TOOLS;
 import com.jasperb.citybuilder.Constant.TERRAIN;
 import com.jasperb.citybuilder.Constant.TERRAIN_TOOLS;
+import com.jasperb.citybuilder.util.EditJournal;
 import com.jasperb.citybuilder.util.ObjectEdit;
 import com.jasperb.citybuilder.util.Observer;
 import com.jasperb.citybuilder.util.TerrainEdit;
@@ -23,8 +26,9 @@ import com.jasperb.citybuilder.util.TerrainEdit;
  * UIS_* indicates the UI thread reads and writes to it, but the draw thread only reads, so only UI thread reading can be unprotected
  * NS_* indicates Not Safe, meaning no protection needed
  * 
- * Object editing is done on the draw thread but requested by the UI thread. In some case with object editing it may be necessary
- * to block the UI thread to ensure no state corruption.
+ * Object editing is done on the draw thread but requested by the UI thread. Object edits are queued just like terrain edits,
+ * so requesting one never has to wait for an earlier one to be processed. A move that no longer fits once it is processed
+ * is reported back to the UI thread (see reportFailedMove).
  * 
  * @author Jasper
  */
@@ -34,7 +38,7 @@ public class SharedState {
     public float TS_FocusRow = 0, TS_FocusCol = 0;//Which column/row should be in the centre of the screen
     public OverScroller TS_Scroller = null;//Controls automatic panning over time
     private LinkedList<TerrainEdit> TS_TerrainEdits = new LinkedList<TerrainEdit>();//Queue of terrain edits to be handled by draw thread
-    private ObjectEdit TS_ObjectEdits = null;//Single object edit to be handled by draw thread
+    private LinkedList<ObjectEdit> TS_ObjectEdits = new LinkedList<ObjectEdit>();//Queue of object edits to be handled by draw thread
 
     // Thread safe member variables (read from by multiple threads, but only written to by UI thread)
     public int UIS_Width = 0, UIS_Height = 0;
@@ -44,7 +48,7 @@ public class SharedState {
     public CityModel UIS_CityModel = null;
     public boolean UIS_DrawGridLines = false;
     public int UIS_SelectedTerrainType = TERRAIN.GRASS;
-    public int UIS_SelectedObjectType = OBJECTS.TEST2X4;
+    public int UIS_SelectedObjectType = 0;//first type listed in the OBJECTS manifest
     public int UIS_Mode = CITY_VIEW_MODES.VIEW;
     public int UIS_Tool = TERRAIN_TOOLS.BRUSH;
     public int UIS_PreviousTool = TERRAIN_TOOLS.BRUSH;
@@ -55,12 +59,12 @@ public class SharedState {
     //Whether future tile selections should modify the first or second vertex of the rectangular bounds
     public boolean UIS_SelectingFirstTile = true;
     public boolean UIS_InputActive = false;
-    public int UIS_DestRow = -1, UIS_DestCol = -1;//Destination for a new object
-    public int UIS_OrigRow = -1, UIS_OrigCol = -1;//Original position of an object being moved
+    public int UIS_DestRow = -1, UIS_DestCol = -1;//Destination for a new object or an object being moved
 
     // Only ever read
     public Observer NS_Overlay;
     public String NS_CityName;
+    public EditJournal NS_Journal = null;//journal the applied edits are recorded in (the draw thread records, the UI thread flushes)
     public Activity NS_Activity = null;
 
     // Only used by UI thread 
@@ -94,6 +98,7 @@ public class SharedState {
         UIS_DestRow = state.UIS_DestRow;
         UIS_DestCol = state.UIS_DestCol;
         UIS_SelectedObjectType = state.UIS_SelectedObjectType;
+        UIS_SelectedObjectID = state.UIS_SelectedObjectID;
     }
 
     /**
@@ -109,16 +114,29 @@ public class SharedState {
         // Process all of the terrain edits since our last update
         // Doing all modifications to the model on the draw thread means the draw thread doesn't need to waste time with
         // thread-safety on reading from the model (which it must do many, many times).
-        synchronized (UIS_CityModel) {
-            for (TerrainEdit edit : TS_TerrainEdits)
-                edit.setTerrain(UIS_CityModel);
-
-            if (TS_ObjectEdits != null) {
-                TS_ObjectEdits.processEdit(UIS_CityModel);
-                TS_ObjectEdits = null;
+        if (!TS_TerrainEdits.isEmpty() || !TS_ObjectEdits.isEmpty()) {
+            synchronized (UIS_CityModel) {
+                //Seed the edits, so that replaying them from the journal gives exactly the same model
+                long seed = NS_Journal == null ? 0 : NS_Journal.nextSeed();
+                UIS_CityModel.setEditSeed(seed);
+                UIS_CityModel.applyTerrainEdits(TS_TerrainEdits);
+
+                for (ObjectEdit edit : TS_ObjectEdits) {
+                    if (!edit.processEdit(UIS_CityModel))
+                        reportFailedMove(edit);
+                }
+                if (NS_Journal != null)
+                    NS_Journal.record(seed, TS_TerrainEdits, TS_ObjectEdits);
+            }
+        }
+        if (NS_Journal != null && NS_Journal.shouldSave()) {
+            //Only the snapshot is taken here, the model is saved in the background
+            synchronized (UIS_CityModel) {
+                NS_Journal.save(UIS_CityModel.snapshot());
             }
         }
         TS_TerrainEdits.clear();
+        TS_ObjectEdits.clear();
 
         if (TS_Scroller == null)// Happens if cleanup was called but the draw thread is still active
             return;
@@ -165,8 +183,106 @@ public class SharedState {
      * Creates and queues up a terrain edit that fills the selected region with the selected tile type
      */
     public void addSelectedTerrainEdit() {
-        if (UIS_FirstSelectedRow == -1)
+        int[] area = getSelectedArea();
+        if (area == null)
             return;
+        TS_TerrainEdits.add(new TerrainEdit(area[0], area[1], area[2], area[3], UIS_SelectedTerrainType, NS_DrawWithBlending));
+    }
+
+    /**
+     * Creates and queues up an object edit that removes every object covering a tile of the selected region, and frees their IDs.
+     * 
+     * @return the number of objects removed
+     */
+    public int removeSelectedObjects() {
+        int[] area = getSelectedArea();
+        if (area == null)
+            return 0;
+        int[] ids = UIS_CityModel.getObjectIDs(area[0], area[1], area[2], area[3]);
+        if (ids.length == 0)
+            return 0;
+        TS_ObjectEdits.add(new ObjectEdit(ids, ids.length));
+        for (int id : ids) {
+            UIS_CityModel.freeObjectID(id);
+        }
+        return ids.length;
+    }
+
+    /**
+     * Creates and queues up an object edit that moves every object covering a tile of the selected region by the same offset,
+     * and moves the selected region along with them.
+     * Returns -3 if any of the objects would leave the city model or be moved onto tiles used by other objects.
+     * If that is only the case once the edit is processed, the selected region is moved back (see reportFailedMove).
+     * 
+     * @param rowOffset
+     *            the number of rows to move the objects by
+     * @param colOffset
+     *            the number of columns to move the objects by
+     * @return a non-negative result is the number of objects moved, a negative results is an error code
+     */
+    public int moveSelectedObjects(int rowOffset, int colOffset) {
+        int[] area = getSelectedArea();
+        if (area == null)
+            return 0;
+        int[] ids = UIS_CityModel.getObjectIDs(area[0], area[1], area[2], area[3]);
+        if (!UIS_CityModel.canMoveObjects(ids, ids.length, rowOffset, colOffset))
+            return -3;
+        if (ids.length != 0)
+            TS_ObjectEdits.add(new ObjectEdit(ids, ids.length, rowOffset, colOffset));
+        UIS_FirstSelectedRow += rowOffset;
+        UIS_FirstSelectedCol += colOffset;
+        if (UIS_SecondSelectedRow != -1) {
+            UIS_SecondSelectedRow += rowOffset;
+            UIS_SecondSelectedCol += colOffset;
+        }
+        return ids.length;
+    }
+
+    /**
+     * Let the user know that a queued move couldn't be processed (as the destination was taken by an earlier edit),
+     * and give them back the selection the move cleared or moved, so that they can try again.
+     * Called on the draw thread, the UI thread does the rest.
+     * 
+     * @param edit
+     *            the object edit that failed, which is ignored if it isn't a move
+     */
+    private void reportFailedMove(final ObjectEdit edit) {
+        if (NS_Activity == null || (edit.getEditType() != ObjectEdit.EDIT_TYPE.MOVE && edit.getEditType() != ObjectEdit.EDIT_TYPE.MOVE_BATCH))
+            return;
+        NS_Activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SharedState.this) {
+                    if (edit.getEditType() == ObjectEdit.EDIT_TYPE.MOVE) {
+                        //Select the object again, unless the user has moved on to something else
+                        if (UIS_Mode == CITY_VIEW_MODES.EDIT_OBJECTS && UIS_Tool == OBJECT_TOOLS.SELECT && UIS_SelectedObjectID == -1
+                                && UIS_CityModel.getObjectType(edit.getID()) != OBJECTS.NONE) {
+                            UIS_SelectedObjectID = edit.getID();
+                            UIS_DestRow = edit.getRow();
+                            UIS_DestCol = edit.getCol();
+                        }
+                    } else if (UIS_FirstSelectedRow != -1) {
+                        //The selection was moved along with the objects, which stayed where they were
+                        UIS_FirstSelectedRow -= edit.getRowOffset();
+                        UIS_FirstSelectedCol -= edit.getColOffset();
+                        if (UIS_SecondSelectedRow != -1) {
+                            UIS_SecondSelectedRow -= edit.getRowOffset();
+                            UIS_SecondSelectedCol -= edit.getColOffset();
+                        }
+                    }
+                }
+                notifyOverlay();
+                Toast.makeText(NS_Activity, "Error: Move Failed. Code: -3", Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * @return the selected region as {minRow, minCol, maxRow, maxCol}, or null if nothing is selected
+     */
+    private int[] getSelectedArea() {
+        if (UIS_FirstSelectedRow == -1)
+            return null;
         int minRow, maxRow, minCol, maxCol;
         if (UIS_FirstSelectedRow < UIS_SecondSelectedRow) {
             minRow = UIS_FirstSelectedRow;
@@ -186,13 +302,12 @@ public class SharedState {
             minRow = maxRow;
             minCol = maxCol;
         }
-        TS_TerrainEdits.add(new TerrainEdit(minRow, minCol, maxRow, maxCol, UIS_SelectedTerrainType, NS_DrawWithBlending));
+        return new int[] { minRow, minCol, maxRow, maxCol };
     }
 
     /**
      * Add an object to the city model.
      * Returns -1 if it failed to allocate an ID because all are currently in use.
-     * Returns -2 if it can't create a new building because a recent object edit is already awaiting processing.
      * Returns -3 if the tiles covered by the building are already in use.
      * 
      * @param row
@@ -204,61 +319,63 @@ public class SharedState {
      * @return a non-negative result is the new objects ID, a negative results is an error code
      */
     public int addObject(int row, int col, int type) {
-        if (TS_ObjectEdits == null) {
-            for (int c = col; c < col + OBJECTS.objectNumColumns[type]; c++) {
-                for (int r = row; r < row + OBJECTS.objectNumRows[type]; r++) {
-                    if (!isTileValid(r, c) || UIS_CityModel.getObjectID(r, c) != -1) {
-                        return -3;
-                    }
-                }
-            }
-            int newObjID = UIS_CityModel.allocateNewObjectID();
-            if (newObjID != -1)
-                TS_ObjectEdits = new ObjectEdit(ObjectEdit.EDIT_TYPE.ADD, row, col, type, newObjID);
-            return newObjID;
-        }
-        //It is currently acceptable to not add an object
-        return -2;
+        if (!UIS_CityModel.isAreaFree(row, col, row + OBJECTS.objectNumRows[type] - 1, col + OBJECTS.objectNumColumns[type] - 1))
+            return -3;
+        int newObjID = UIS_CityModel.allocateNewObjectID();
+        if (newObjID != -1)
+            TS_ObjectEdits.add(new ObjectEdit(ObjectEdit.EDIT_TYPE.ADD, row, col, type, newObjID));
+        return newObjID;
     }
 
     /**
-     * Add an object to the city model using an already allocated object ID.
-     * Returns -2 if it can't create a new building because a recent object edit is already awaiting processing.
-     * Returns -3 if the tiles covered by the building are already in use.
+     * Add several objects to the city model at once, e.g. for pasting or generated layouts.
+     * Returns -1 if it failed to allocate IDs because there aren't enough unused ones.
+     * Returns -3 if the tiles covered by the buildings are already in use, or the buildings overlap each other.
      * 
+     * @param rows
+     *            the minimum row covered by each building
+     * @param cols
+     *            the minimum column covered by each building
+     * @param types
+     *            the type of each building
+     * @param count
+     *            the number of buildings
+     * @return a non-negative result is the number of objects added, a negative results is an error code
+     */
+    public int addObjects(int[] rows, int[] cols, int[] types, int count) {
+        if (!UIS_CityModel.canAddObjects(rows, cols, types, count))
+            return -3;
+        int[] ids = new int[count];
+        if (!UIS_CityModel.allocateNewObjectIDs(ids, count))
+            return -1;
+        TS_ObjectEdits.add(new ObjectEdit(rows, cols, types, ids, count));
+        return count;
+    }
+
+    /**
+     * Move an object in the city model. The object stays where it is in the model until the move is processed.
+     * Returns -3 if the tiles the building would cover are already in use by another object.
+     * If that is only the case once the edit is processed, the object is selected again (see reportFailedMove).
+     * 
+     * @param id
+     *            the id of the building to move
      * @param row
-     *            the minimum row covered by the building
+     *            the new minimum row covered by the building
      * @param col
-     *            the minimum column covered by the building
-     * @param type
-     *            the type of the building
-     * @param id
-     *            the id of the building to create
-     * @return a non-negative result is the new objects ID, a negative results is an error code
+     *            the new minimum column covered by the building
+     * @return a non-negative result is the objects ID, a negative results is an error code
      */
-    public int addObject(int row, int col, int type, int id) {
-        if (TS_ObjectEdits == null) {
-            for (int c = col; c < col + OBJECTS.objectNumColumns[type]; c++) {
-                for (int r = row; r < row + OBJECTS.objectNumRows[type]; r++) {
-                    if (!isTileValid(r, c) || UIS_CityModel.getObjectID(r, c) != -1) {
-                        return -3;
-                    }
-                }
-            }
-            TS_ObjectEdits = new ObjectEdit(ObjectEdit.EDIT_TYPE.ADD, row, col, type, id);
-            return id;
-        }
-        return -2;
+    public int moveObject(int id, int row, int col) {
+        if (!UIS_CityModel.canMoveObject(id, row, col))
+            return -3;
+        TS_ObjectEdits.add(new ObjectEdit(id, row, col));
+        return id;
     }
 
     /**
-     * Restores an object being moved to its original position. Blocks the thread if necessary.
+     * Stops moving the selected object, leaving it at its original position.
      */
     public void cancelMoveObject() {
-        while (TS_ObjectEdits != null) {}
-
-        TS_ObjectEdits = new ObjectEdit(ObjectEdit.EDIT_TYPE.ADD, UIS_OrigRow, UIS_OrigCol, UIS_SelectedObjectType, UIS_SelectedObjectID);
-
         UIS_SelectedObjectID = -1;
         UIS_DestRow = -1;
         UIS_DestCol = -1;
@@ -269,26 +386,9 @@ public class SharedState {
      * 
      * @param id
      *            the id of the object to remove
-     * @param block
-     *            if true the calling thread will block until it can remove the object, otherwise if it fails it will return false
-     * @return true if the object was removed
      */
-    public boolean removeObject(int id, boolean block) {
-        ObjectEdit newEdit = new ObjectEdit(ObjectEdit.EDIT_TYPE.REMOVE, id);
-        if (TS_ObjectEdits == null) {
-            TS_ObjectEdits = newEdit;
-            return true;
-        } else if (block) {
-            if (!TS_ObjectEdits.equals(newEdit)) {
-                //new object edit doesn't match existing one, so block until we can perform it
-                //this is bad (blocking UI thread), but it's worth it to ensure the state isn't corrupted
-                while (TS_ObjectEdits != null) {}
-                removeObject(id, true);
-            }
-            return true;
-        } else {
-            return false;
-        }
+    public void removeObject(int id) {
+        TS_ObjectEdits.add(new ObjectEdit(ObjectEdit.EDIT_TYPE.REMOVE, id));
     }
 
     /**
@@ -0,0 +1,337 @@
+package com.jasperb.citybuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.jasperb.citybuilder.Constant.TERRAIN;
+import com.jasperb.citybuilder.Constant.TERRAIN_MODS;
+import com.jasperb.citybuilder.Constant.TILE_STORAGE;
+import com.jasperb.citybuilder.util.FileStreamUtils;
+
+/**
+ * A square block of CHUNK_SIZE x CHUNK_SIZE tiles of a city model.
+ * Tiles within a chunk are indexed column by column, as that is the order the draw thread reads them in.
+ * How the tiles are laid out in memory is up to the subclass (see TILE_STORAGE).
+ */
+abstract class TileChunk {
+    //Values of a tile that has never been written to (used for chunks that have not been allocated)
+    public static final byte DEFAULT_TERRAIN = TERRAIN.GRASS;
+    public static final byte DEFAULT_MOD = TERRAIN_MODS.NONE;
+    public static final byte DEFAULT_BLEND = 1;
+    public static final int DEFAULT_OBJECT_ID = -1;
+
+    /*
+     * Image of a chunk as it is saved:
+     * byte[CHUNK_AREA] terrain;
+     * byte[CHUNK_AREA] first terrain mod;
+     * byte[CHUNK_AREA] blend;
+     * int[CHUNK_AREA] object ID;
+     * followed by the terrain mods after the first mod of each tile (see writeExtraMods).
+     * Version 3 saves store the object IDs as shorts instead (see readV3).
+     */
+    public static final int IMAGE_TERRAIN_OFFSET = 0;
+    public static final int IMAGE_MOD_OFFSET = IMAGE_TERRAIN_OFFSET + Constant.CHUNK_AREA;
+    public static final int IMAGE_BLEND_OFFSET = IMAGE_MOD_OFFSET + Constant.CHUNK_AREA;
+    public static final int IMAGE_OBJECT_OFFSET = IMAGE_BLEND_OFFSET + Constant.CHUNK_AREA;
+    public static final int IMAGE_SIZE = IMAGE_OBJECT_OFFSET + Constant.CHUNK_AREA * 4;
+    private static final int V3_IMAGE_SIZE = IMAGE_OBJECT_OFFSET + Constant.CHUNK_AREA * 2;
+
+    private static final int MASK = Constant.CHUNK_SIZE - 1;
+    //Most terrain mods a tile can have after its first mod, as their count is saved in an unsigned byte (see writeExtraMods)
+    public static final int MAX_EXTRA_MODS = 255;
+
+    //Terrain mods following the first mod of each tile, allocated once a tile in the chunk has more than one mod
+    //Each list is as long as it needs to be, and is terminated by a NONE mod or the end of the array
+    private byte[][] mExtraMods = null;
+
+    /**
+     * Create a chunk filled with default tiles.
+     * 
+     * @param storage
+     *            the TILE_STORAGE layout to use for the chunk
+     */
+    public static TileChunk create(int storage) {
+        switch (storage) {
+        case TILE_STORAGE.ARRAYS:
+            return new ArrayTileChunk();
+        case TILE_STORAGE.PACKED:
+            return new PackedTileChunk();
+        case TILE_STORAGE.BUFFER:
+            return new BufferTileChunk();
+        default:
+            throw new IllegalArgumentException("Tile storage " + storage + " does not exist");
+        }
+    }
+
+    /**
+     * Get the index of a tile within the chunk that contains it.
+     * 
+     * @param row
+     *            the row of the tile within the city model
+     * @param col
+     *            the column of the tile within the city model
+     */
+    public static int getTileIndex(int row, int col) {
+        return ((col & MASK) << Constant.CHUNK_SIZE_SHIFT) | (row & MASK);
+    }
+
+    /**
+     * Get the terrain of the chunk's tiles if they all have the same terrain, no terrain mods and no objects,
+     * so that every tile of the chunk is drawn the same way.
+     * 
+     * @return the terrain, or -1 if the tiles may differ
+     */
+    public int getUniformTerrain() {
+        return -1;
+    }
+
+    /**
+     * Get the chunk that reads and writes are passed on to, for chunks that only stand in for a regular chunk until they are changed.
+     * The stand-in can be replaced by the chunk it returns.
+     * 
+     * @return the chunk, or null if this chunk holds its tiles itself
+     */
+    public TileChunk getExpandedChunk() {
+        return null;
+    }
+
+    /**
+     * Copy the tiles into a new chunk.
+     * 
+     * @param storage
+     *            the TILE_STORAGE layout of the copy
+     */
+    public TileChunk copy(int storage) {
+        TileChunk chunk = TileChunk.create(storage);
+        for (int i = 0; i < Constant.CHUNK_AREA; i++) {
+            chunk.setTerrain(i, getTerrain(i));
+            chunk.setBlend(i, getBlend(i));
+            chunk.setObjectID(i, getObjectID(i));
+            byte mod = getMod(i, 0);
+            for (int modIndex = 0; mod != DEFAULT_MOD; mod = getMod(i, ++modIndex)) {
+                chunk.setMod(i, modIndex, mod);
+            }
+        }
+        return chunk;
+    }
+
+    public abstract byte getTerrain(int index);
+
+    public abstract void setTerrain(int index, byte terrain);
+
+    /**
+     * Get a terrain mod of a tile. Mods following the first NONE mod of a tile are NONE as well.
+     */
+    public abstract byte getMod(int index, int modIndex);
+
+    /**
+     * Set a terrain mod of a tile. Setting a NONE mod terminates the tile's list of mods, and setting mods following a NONE mod
+     * does nothing, so a tile's mods are expected to be set in order.
+     */
+    public abstract void setMod(int index, int modIndex, byte mod);
+
+    /**
+     * Get the second or later terrain mod of a tile.
+     * 
+     * @param index
+     *            the index of the tile
+     * @param modIndex
+     *            the mod index (at least 1)
+     */
+    protected byte getExtraMod(int index, int modIndex) {
+        if (mExtraMods == null)
+            return DEFAULT_MOD;
+        byte[] mods = mExtraMods[index];
+        if (mods == null || modIndex > mods.length)
+            return DEFAULT_MOD;
+        return mods[modIndex - 1];
+    }
+
+    /**
+     * Set the second or later terrain mod of a tile.
+     * 
+     * @param index
+     *            the index of the tile
+     * @param modIndex
+     *            the mod index (at least 1)
+     * @param mod
+     * @return true if the tile has mods following its first mod
+     * @throws IllegalArgumentException
+     *             if the mod would be past MAX_EXTRA_MODS mods following the first mod
+     */
+    protected boolean setExtraMod(int index, int modIndex, byte mod) {
+        if (modIndex > MAX_EXTRA_MODS && mod != DEFAULT_MOD)
+            throw new IllegalArgumentException("A tile can't have more than " + (MAX_EXTRA_MODS + 1) + " terrain mods");
+        if (modIndex == 1) {
+            if (mod == DEFAULT_MOD) {
+                //The list ends at the first mod
+                if (mExtraMods != null)
+                    mExtraMods[index] = null;
+                return false;
+            }
+            if (mExtraMods == null)
+                mExtraMods = new byte[Constant.CHUNK_AREA][];
+            if (mExtraMods[index] == null)
+                mExtraMods[index] = new byte[1];
+        } else if (mExtraMods == null || mExtraMods[index] == null) {
+            return false;//The list has already ended, so there is no need to store the mod
+        }
+
+        byte[] mods = mExtraMods[index];
+        if (mod == DEFAULT_MOD) {
+            //Cut the list short, as reading past the end of the list returns NONE
+            if (modIndex - 1 < mods.length)
+                mExtraMods[index] = Arrays.copyOf(mods, modIndex - 1);
+            return true;
+        }
+        if (modIndex > mods.length) {
+            int oldLength = mods.length;
+            mods = Arrays.copyOf(mods, modIndex);
+            Arrays.fill(mods, oldLength, modIndex, DEFAULT_MOD);
+            mExtraMods[index] = mods;
+        }
+        mods[modIndex - 1] = mod;
+        return true;
+    }
+
+    public abstract byte getBlend(int index);
+
+    public abstract void setBlend(int index, byte blend);
+
+    public abstract int getObjectID(int index);
+
+    public abstract void setObjectID(int index, int id);
+
+    /**
+     * Write the chunk to a stream.
+     * 
+     * @param stream
+     * @param image
+     *            scratch buffer of at least IMAGE_SIZE bytes
+     */
+    public void write(FileStreamUtils stream, ByteBuffer image) throws IOException {
+        writeImage(stream, image);
+        writeExtraMods(stream);
+    }
+
+    /**
+     * Write the image of the chunk to a stream, without the terrain mods following the first mod of each tile.
+     * 
+     * @param stream
+     * @param image
+     *            scratch buffer of at least IMAGE_SIZE bytes
+     */
+    public void writeImage(FileStreamUtils stream, ByteBuffer image) throws IOException {
+        getImage(image);
+        stream.write(image);
+    }
+
+    /**
+     * Copy the image of the chunk into a buffer, without the terrain mods following the first mod of each tile.
+     * 
+     * @param image
+     *            buffer of at least IMAGE_SIZE bytes, which is left with its position at 0 and its limit at IMAGE_SIZE
+     */
+    public void getImage(ByteBuffer image) {
+        image.clear();
+        for (int i = 0; i < Constant.CHUNK_AREA; i++) {
+            image.put(IMAGE_TERRAIN_OFFSET + i, getTerrain(i));
+            image.put(IMAGE_MOD_OFFSET + i, getMod(i, 0));
+            image.put(IMAGE_BLEND_OFFSET + i, getBlend(i));
+            image.putInt(IMAGE_OBJECT_OFFSET + i * 4, getObjectID(i));
+        }
+        image.limit(IMAGE_SIZE);
+    }
+
+    /**
+     * Fill the tiles of the chunk from an image, leaving the terrain mods following the first mod of each tile as they are.
+     * 
+     * @param image
+     *            buffer holding the image from index 0
+     */
+    public void setImage(ByteBuffer image) {
+        for (int i = 0; i < Constant.CHUNK_AREA; i++) {
+            setTerrain(i, image.get(IMAGE_TERRAIN_OFFSET + i));
+            setMod(i, 0, image.get(IMAGE_MOD_OFFSET + i));
+            setBlend(i, image.get(IMAGE_BLEND_OFFSET + i));
+            setObjectID(i, image.getInt(IMAGE_OBJECT_OFFSET + i * 4));
+        }
+    }
+
+    /**
+     * Fill the chunk from a stream.
+     * 
+     * @param stream
+     * @param image
+     *            scratch buffer of at least IMAGE_SIZE bytes
+     */
+    public void read(FileStreamUtils stream, ByteBuffer image) throws IOException {
+        image.clear();
+        image.limit(IMAGE_SIZE);
+        stream.readFully(image);
+        setImage(image);
+        readExtraMods(stream);
+    }
+
+    /**
+     * Fill the chunk from a stream written by a version 3 save, which had short object IDs.
+     * 
+     * @param stream
+     * @param image
+     *            scratch buffer of at least IMAGE_SIZE bytes
+     */
+    public void readV3(FileStreamUtils stream, ByteBuffer image) throws IOException {
+        image.clear();
+        image.limit(V3_IMAGE_SIZE);
+        stream.readFully(image);
+        for (int i = 0; i < Constant.CHUNK_AREA; i++) {
+            setTerrain(i, image.get(IMAGE_TERRAIN_OFFSET + i));
+            setMod(i, 0, image.get(IMAGE_MOD_OFFSET + i));
+            setBlend(i, image.get(IMAGE_BLEND_OFFSET + i));
+            setObjectID(i, image.getShort(IMAGE_OBJECT_OFFSET + i * 2));
+        }
+        readExtraMods(stream);
+    }
+
+    /**
+     * Write the terrain mods following the first mod of each tile.
+     * Format: short tileCount; (short index, unsigned byte count, byte[count] mods)[tileCount];
+     * 
+     * @param stream
+     */
+    protected void writeExtraMods(FileStreamUtils stream) throws IOException {
+        short tileCount = 0;
+        if (mExtraMods != null) {
+            for (int i = 0; i < Constant.CHUNK_AREA; i++) {
+                if (mExtraMods[i] != null)
+                    tileCount++;
+            }
+        }
+        stream.write(tileCount);
+        for (int i = 0; tileCount > 0 && i < Constant.CHUNK_AREA; i++) {
+            byte[] mods = mExtraMods[i];
+            if (mods != null) {
+                stream.write((short) i);
+                stream.write((byte) mods.length);
+                stream.write(mods);
+            }
+        }
+    }
+
+    /**
+     * Read the terrain mods following the first mod of each tile, as written by writeExtraMods.
+     * 
+     * @param stream
+     */
+    protected void readExtraMods(FileStreamUtils stream) throws IOException {
+        short tileCount = stream.readShort();
+        for (int i = 0; i < tileCount; i++) {
+            int index = stream.readShort();
+            int count = stream.readByte() & 0xFF;
+            for (int modIndex = 1; modIndex <= count; modIndex++) {
+                setMod(index, modIndex, stream.readByte());
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.jasperb.citybuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.jasperb.citybuilder.util.FileStreamUtils;
+
+/**
+ * Chunk whose tiles all have the same terrain and blend, no terrain mods and no objects, so that a single value describes all of them.
+ * The first write that would make the tiles differ expands the chunk into a regular chunk of the given TILE_STORAGE,
+ * which all reads and writes are passed on to from then on.
+ */
+class UniformTileChunk extends TileChunk {
+    private byte mTerrain, mBlend;//value of every tile (until expanded)
+    private int mStorage;//TILE_STORAGE layout to expand into
+    private TileChunk mExpanded = null;//the expanded chunk, null while the tiles are uniform
+
+    public UniformTileChunk(byte terrain, byte blend, int storage) {
+        mTerrain = terrain;
+        mBlend = blend;
+        mStorage = storage;
+    }
+
+    /**
+     * Get the regular chunk this chunk was expanded into.
+     * 
+     * @return the expanded chunk, or null if the tiles are still uniform
+     */
+    @Override
+    public TileChunk getExpandedChunk() {
+        return mExpanded;
+    }
+
+    @Override
+    public int getUniformTerrain() {
+        return mExpanded == null ? mTerrain : mExpanded.getUniformTerrain();
+    }
+
+    /**
+     * Copy the uniform value into a regular chunk that can hold differing tiles.
+     */
+    private TileChunk expand() {
+        if (mExpanded == null) {
+            TileChunk chunk = TileChunk.create(mStorage);
+            for (int i = 0; i < Constant.CHUNK_AREA; i++) {
+                chunk.setTerrain(i, mTerrain);
+                chunk.setBlend(i, mBlend);
+            }
+            mExpanded = chunk;
+        }
+        return mExpanded;
+    }
+
+    @Override
+    public TileChunk copy(int storage) {
+        if (mExpanded != null)
+            return mExpanded.copy(storage);
+        return new UniformTileChunk(mTerrain, mBlend, storage);//still uniform, so there is no need to expand the copy
+    }
+
+    @Override
+    public byte getTerrain(int index) {
+        return mExpanded == null ? mTerrain : mExpanded.getTerrain(index);
+    }
+
+    @Override
+    public void setTerrain(int index, byte terrain) {
+        if (mExpanded != null || terrain != mTerrain)
+            expand().setTerrain(index, terrain);
+    }
+
+    @Override
+    public byte getMod(int index, int modIndex) {
+        return mExpanded == null ? DEFAULT_MOD : mExpanded.getMod(index, modIndex);
+    }
+
+    @Override
+    public void setMod(int index, int modIndex, byte mod) {
+        if (mExpanded != null || mod != DEFAULT_MOD)
+            expand().setMod(index, modIndex, mod);
+    }
+
+    @Override
+    public byte getBlend(int index) {
+        return mExpanded == null ? mBlend : mExpanded.getBlend(index);
+    }
+
+    @Override
+    public void setBlend(int index, byte blend) {
+        if (mExpanded != null || blend != mBlend)
+            expand().setBlend(index, blend);
+    }
+
+    @Override
+    public int getObjectID(int index) {
+        return mExpanded == null ? DEFAULT_OBJECT_ID : mExpanded.getObjectID(index);
+    }
+
+    @Override
+    public void setObjectID(int index, int id) {
+        if (mExpanded != null || id != DEFAULT_OBJECT_ID)
+            expand().setObjectID(index, id);
+    }
+
+    @Override
+    public void writeImage(FileStreamUtils stream, ByteBuffer image) throws IOException {
+        if (mExpanded != null) {
+            mExpanded.writeImage(stream, image);
+        } else {
+            super.writeImage(stream, image);
+        }
+    }
+
+    @Override
+    public void getImage(ByteBuffer image) {
+        if (mExpanded != null) {
+            mExpanded.getImage(image);
+        } else {
+            super.getImage(image);
+        }
+    }
+
+    @Override
+    protected void writeExtraMods(FileStreamUtils stream) throws IOException {
+        if (mExpanded != null) {
+            mExpanded.writeExtraMods(stream);
+        } else {
+            super.writeExtraMods(stream);
+        }
+    }
+}
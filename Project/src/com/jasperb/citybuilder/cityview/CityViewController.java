@@ -10,7 +10,6 @@ import android.view.ScaleGestureDetector;
 
 import com.jasperb.citybuilder.Constant;
 import com.jasperb.citybuilder.SharedState;
-import com.jasperb.citybuilder.CityModel.ObjectSlice;
 import com.jasperb.citybuilder.Constant.BRUSH_TYPES;
 import com.jasperb.citybuilder.Constant.CITY_VIEW_MODES;
 import com.jasperb.citybuilder.Constant.OBJECTS;
@@ -163,13 +162,9 @@ public class CityViewController {
                                 int id = mState.UIS_CityModel.getObjectID(row, col);
                                 if (id != -1) {
                                     mState.UIS_SelectedObjectID = id;
-                                    ObjectSlice slice = mState.UIS_CityModel.getObjectSlice(id);
-                                    mState.removeObject(id, true);
-                                    mState.UIS_SelectedObjectType = slice.type;
-                                    mState.UIS_DestRow = slice.row + 1 - OBJECTS.objectNumRows[slice.type];
-                                    mState.UIS_DestCol = slice.col;
-                                    mState.UIS_OrigRow = mState.UIS_DestRow;
-                                    mState.UIS_OrigCol = mState.UIS_DestCol;
+                                    mState.UIS_SelectedObjectType = mState.UIS_CityModel.getObjectType(id);
+                                    mState.UIS_DestRow = mState.UIS_CityModel.getObjectRow(id);
+                                    mState.UIS_DestCol = mState.UIS_CityModel.getObjectCol(id);
                                     mState.notifyOverlay();
                                 }
                             }
@@ -220,11 +215,11 @@ public class CityViewController {
                     if (minCol < 0)
                         minCol = 0;
                     int maxRow = row + 1;
-                    if (maxRow > mState.UIS_CityModel.getHeight())
-                        maxRow = 0;
+                    if (maxRow >= mState.UIS_CityModel.getHeight())
+                        maxRow = mState.UIS_CityModel.getHeight() - 1;
                     int maxCol = col + 1;
-                    if (maxCol > mState.UIS_CityModel.getWidth())
-                        maxCol = 0;
+                    if (maxCol >= mState.UIS_CityModel.getWidth())
+                        maxCol = mState.UIS_CityModel.getWidth() - 1;
                     mState.addTerrainEdit(new TerrainEdit(minRow, minCol, maxRow, maxCol, mState.UIS_SelectedTerrainType,
                             mState.NS_DrawWithBlending));
                 } else if (mState.UIS_BrushType == BRUSH_TYPES.SQUARE5X5) {
@@ -235,11 +230,11 @@ public class CityViewController {
                     if (minCol < 0)
                         minCol = 0;
                     int maxRow = row + 2;
-                    if (maxRow > mState.UIS_CityModel.getHeight())
-                        maxRow = 0;
+                    if (maxRow >= mState.UIS_CityModel.getHeight())
+                        maxRow = mState.UIS_CityModel.getHeight() - 1;
                     int maxCol = col + 2;
-                    if (maxCol > mState.UIS_CityModel.getWidth())
-                        maxCol = 0;
+                    if (maxCol >= mState.UIS_CityModel.getWidth())
+                        maxCol = mState.UIS_CityModel.getWidth() - 1;
                     mState.addTerrainEdit(new TerrainEdit(minRow, minCol, maxRow, maxCol, mState.UIS_SelectedTerrainType,
                             mState.NS_DrawWithBlending));
                 }
@@ -13,12 +13,12 @@ import android.graphics.Rect;
 import android.util.Log;
 import android.view.SurfaceHolder;
 
-import com.jasperb.citybuilder.CityModel.ObjectSlice;
 import com.jasperb.citybuilder.Constant;
 import com.jasperb.citybuilder.Constant.CITY_VIEW_MODES;
 import com.jasperb.citybuilder.Constant.OBJECTS;
 import com.jasperb.citybuilder.Constant.TERRAIN_MODS;
 import com.jasperb.citybuilder.Constant.TERRAIN_TOOLS;
+import com.jasperb.citybuilder.ObjectSliceStore;
 import com.jasperb.citybuilder.SharedState;
 import com.jasperb.citybuilder.util.ObjectBitmaps;
 import com.jasperb.citybuilder.util.PerfTools;
@@ -49,6 +49,8 @@ public class DrawThread extends Thread {
     private int mOriginX, mOriginY, mBitmapOffsetX, mTopLeftRow, mTopLeftCol, mBottomRightRow, mBottomRightCol, mFirstRow, mFirstCol,
             mLastCol, mLeftBoundRow, mLeftBoundCol, mRightBoundRow, mRightBoundCol, mTopBoundRow, mTopBoundCol, mBottomBoundRow,
             mBottomBoundCol, mMinRow, mMaxRow;
+    //Range of columns, row + col sums and col - row differences of the anchors of slices that may be visible
+    private int mFirstObjectCol, mLastObjectCol, mMinObjectSum, mMaxObjectSum, mMinObjectDiff, mMaxObjectDiff;
     private long startTime;
 
     public DrawThread(SurfaceHolder surfaceHolder, SharedState state) {
@@ -240,6 +242,30 @@ public class DrawThread extends Thread {
         //For now, let drawGround handle this
         mMinRow = mDrawState.UIS_CityModel.getHeight() - 1;
         mMaxRow = 0;
+
+        calculateObjectBoundaries();
+    }
+
+    /**
+     * Calculate which object slices may be visible, in terms of the tile that each slice is anchored to (its row and column).
+     * Tiles with the same col - row share an x coordinate and tiles with the same row + col share a y coordinate,
+     * so the view is a rectangle in those terms, which we widen by how far a slice can be drawn away from its anchor tile.
+     */
+    private void calculateObjectBoundaries() {
+        int halfWidth = mDrawState.getTileWidth() / 2;
+        int halfHeight = mDrawState.getTileHeight() / 2;
+        int maxRows = OBJECTS.maxNumRows, maxColumns = OBJECTS.maxNumColumns;
+        int maxHeight = mObjectBitmaps.getScaledMaxHeight();
+
+        //A slice starts at most half a tile left of its anchor and spans less than two slice widths (1 + rows half tiles each)
+        mMinObjectDiff = (int) Math.floor(-mOriginX / (float) halfWidth) - 2 * (maxRows + 1) - 1;
+        mMaxObjectDiff = (int) Math.ceil((mDrawState.UIS_Width - mOriginX) / (float) halfWidth) + 1;
+        //A slice's bottom edge is at most (columns + 1) half tiles below its anchor, and its top edge at most the tallest bitmap above
+        mMinObjectSum = (int) Math.floor(-mOriginY / (float) halfHeight) - (maxColumns + 1);
+        mMaxObjectSum = (int) Math.ceil((mDrawState.UIS_Height - mOriginY + maxHeight) / (float) halfHeight);
+
+        mFirstObjectCol = Math.max(0, (int) Math.floor((mMinObjectSum + mMinObjectDiff) / 2f));
+        mLastObjectCol = Math.min(mDrawState.UIS_CityModel.getWidth() - 1, (int) Math.ceil((mMaxObjectSum + mMaxObjectDiff) / 2f));
     }
 
     /**
@@ -291,13 +317,28 @@ public class DrawThread extends Thread {
             if (lastRow > mMaxRow)
                 mMaxRow = lastRow;
 
-            for (; row <= lastRow; row++) {
-                // Time to draw the terrain to the buffer. TileBitmaps handles resizing the tiles, we just draw/position them
+            while (row <= lastRow) {
+                //The column is drawn one chunk of tiles at a time, as all of the tiles of a uniform chunk look the same
+                int segmentLastRow = Math.min(lastRow, row | (Constant.CHUNK_SIZE - 1));
+                int uniformTerrain = mDrawState.UIS_CityModel.getUniformTerrain(row, col);
+                if (uniformTerrain != -1) {
+                    Bitmap bitmap = mTileBitmaps.getScaledTileBitmap(uniformTerrain);
+                    if (mDrawState.UIS_Mode == CITY_VIEW_MODES.EDIT_TERRAIN)
+                        mTilePaint.setColorFilter(null);//uniform chunks are never covered by objects
+                    for (; row <= segmentLastRow; row++) {
+                        canvas.drawBitmap(bitmap, mDrawState.isoToRealXDownscaling(row, col) + mOriginX + mBitmapOffsetX,
+                                mDrawState.isoToRealYDownscaling(row, col) + mOriginY, mTilePaint);
+                    }
+                    continue;
+                }
+
+                for (; row <= segmentLastRow; row++) {
+                    // Time to draw the terrain to the buffer. TileBitmaps handles resizing the tiles, we just draw/position them
 //                    Log.d(TAG, "Paint Tile: " + row + " : " + col);
                 
-                //Set the colour filters based off whether the tile is covered by a building
-                //Currently disabled the colour filters for selected tiles due to performance issues
-                if (mDrawState.UIS_Mode == CITY_VIEW_MODES.EDIT_TERRAIN) { 
+                    //Set the colour filters based off whether the tile is covered by a building
+                    //Currently disabled the colour filters for selected tiles due to performance issues
+                    if (mDrawState.UIS_Mode == CITY_VIEW_MODES.EDIT_TERRAIN) { 
 //                    if (mDrawState.mFirstSelectedRow != -1) {
 //                        if (row >= minSelectedRow && row <= maxSelectedRow && col >= minSelectedCol && col <= maxSelectedCol) {
 //                            if ((mDrawState.mSelectingFirstTile && row == mDrawState.mFirstSelectedRow && col == mDrawState.mFirstSelectedCol)
@@ -322,30 +363,29 @@ public class DrawThread extends Thread {
 //                    } else {
 //                        mTilePaint.setColorFilter(null);
 //                    }
-                    if (mDrawState.UIS_CityModel.getObjectID(row, col) != -1) {
-                        mTilePaint.setColorFilter(mCoveredTileFilter);
-                    } else {
-                        mTilePaint.setColorFilter(null);
+                        if (mDrawState.UIS_CityModel.getObjectID(row, col) != -1) {
+                            mTilePaint.setColorFilter(mCoveredTileFilter);
+                        } else {
+                            mTilePaint.setColorFilter(null);
+                        }
                     }
-                }
                 
-                int drawX = mDrawState.isoToRealXDownscaling(row, col) + mOriginX + mBitmapOffsetX;
-                int drawY = mDrawState.isoToRealYDownscaling(row, col) + mOriginY;
-                //Draw tile
-                canvas.drawBitmap(mTileBitmaps.getScaledTileBitmap(mDrawState.UIS_CityModel.getTerrain(row, col)), drawX, drawY, mTilePaint);
+                    int drawX = mDrawState.isoToRealXDownscaling(row, col) + mOriginX + mBitmapOffsetX;
+                    int drawY = mDrawState.isoToRealYDownscaling(row, col) + mOriginY;
+                    //Draw tile
+                    canvas.drawBitmap(mTileBitmaps.getScaledTileBitmap(mDrawState.UIS_CityModel.getTerrain(row, col)), drawX, drawY, mTilePaint);
                 
-                //Draw terrain mods/decorations
-                int mod = mDrawState.UIS_CityModel.getMod(row, col, 0);
-                if (mod != TERRAIN_MODS.NONE) {
-                    int index = 0;
-
-                    while (mod != TERRAIN_MODS.NONE) {
-                        canvas.drawBitmap(mTileBitmaps.getScaledModBitmap(mod), drawX + TileBitmaps.getModOffsetX(mod) * visualScale, drawY
-                                + TileBitmaps.getModOffsetY(mod) * visualScale, mTilePaint);
-                        index++;
-                        if (index >= Constant.MAX_NUMBER_OF_TERRAIN_MODS)
-                            break;
-                        mod = mDrawState.UIS_CityModel.getMod(row, col, index);
+                    //Draw terrain mods/decorations
+                    int mod = mDrawState.UIS_CityModel.getMod(row, col, 0);
+                    if (mod != TERRAIN_MODS.NONE) {
+                        int index = 0;
+
+                        while (mod != TERRAIN_MODS.NONE) {
+                            canvas.drawBitmap(mTileBitmaps.getScaledModBitmap(mod), drawX + TileBitmaps.getModOffsetX(mod) * visualScale, drawY
+                                    + TileBitmaps.getModOffsetY(mod) * visualScale, mTilePaint);
+                            index++;
+                            mod = mDrawState.UIS_CityModel.getMod(row, col, index);
+                        }
                     }
                 }
             }
@@ -451,7 +491,6 @@ public class DrawThread extends Thread {
      * @param canvas
      */
     private void drawObjects(Canvas canvas) {
-        float visualScale = mDrawState.getTileWidth() / (float) Constant.TILE_WIDTH;
         Rect origin = new Rect();
         Rect dest = new Rect();
         Paint p = new Paint();
@@ -459,36 +498,41 @@ public class DrawThread extends Thread {
             p.setAlpha(100);//draw the objects with some transparency (100/255)
         Rect screen = new Rect(0, 0, mDrawState.UIS_Width, mDrawState.UIS_Height);
 
-        ObjectSlice currentSlice = mDrawState.UIS_CityModel.getObjectList();
-        //Iterate through object list which is sorted in the order we should draw them in
-        //We test every slice to see if it is visible
-        while (currentSlice != null) {
-            //currentSlice.log(TAG);
-            int sliceWidth = OBJECTS.getScaledSliceWidth(currentSlice.type, mDrawState.getTileWidth());
-            int sliceColumns = sliceWidth / (mDrawState.getTileWidth() / 2);
-            int firstCol = currentSlice.col
-                    - Math.min(sliceColumns * currentSlice.sliceIndex, OBJECTS.objectNumColumns[currentSlice.type] - 1);
-            int drawX = mDrawState.isoToRealXDownscaling(currentSlice.row, firstCol) + mOriginX + mBitmapOffsetX
-                    + sliceWidth * currentSlice.sliceIndex;
-            int drawY = mDrawState.isoToRealYDownscaling(currentSlice.row, firstCol) + mOriginY
-                    + (OBJECTS.objectNumColumns[currentSlice.type] + 1)
-                    * (mDrawState.getTileHeight() / 2);
-
-            Bitmap bitmap = mObjectBitmaps.getScaledObjectBitmap(currentSlice.type, currentSlice.sliceIndex);
-
-            int height = (int) Math.ceil(bitmap.getHeight() * visualScale);
-            int width = (int) Math.ceil(bitmap.getWidth() * visualScale);
-
-            dest.set(drawX, drawY - height, drawX + width, drawY);
-
-            //Only draw if the bitmap region intersects with the screen
-            if (Rect.intersects(dest, screen)) {
-                //Only draw the part of the bitmap that the scaled bitmap was drawn to (for a minor performance benefit)
-                origin.set(0, 0, width, height);
-                canvas.drawBitmap(bitmap, origin, dest, p);
+        ObjectSliceStore slices = mDrawState.UIS_CityModel.getObjectSlices();
+        int halfTileHeight = mDrawState.getTileHeight() / 2;
+        //Iterate through the columns of slices, each of which is sorted in the order we should draw them in
+        //Only the slices anchored within the object boundaries are visited, and each of those is tested to see if it is visible
+        for (int col = mFirstObjectCol; col <= mLastObjectCol; col++) {
+            int firstRow = Math.max(0, Math.max(mMinObjectSum - col, col - mMaxObjectDiff));
+            int lastRow = Math.min(mMaxObjectSum - col, col - mMinObjectDiff);
+            for (int i = slices.findFirstSlice(col, firstRow); i < slices.getSliceCount(col); i++) {
+                int slice = slices.getSlice(col, i);
+                int row = slices.getRow(slice);
+                if (row > lastRow)
+                    break;
+                if (slices.getId(slice) == mDrawState.UIS_SelectedObjectID)
+                    continue;//the object being moved is drawn at its destination instead
+                int type = slices.getType(slice);
+                int sliceIndex = slices.getSliceIndex(slice);
+                int firstCol = col - OBJECTS.getSliceColumnOffset(type, sliceIndex);
+                int drawX = mDrawState.isoToRealXDownscaling(row, firstCol) + mOriginX + mBitmapOffsetX
+                        + mObjectBitmaps.getScaledSliceWidth(type) * sliceIndex;
+                int drawY = mDrawState.isoToRealYDownscaling(row, firstCol) + mOriginY + (OBJECTS.objectNumColumns[type] + 1) * halfTileHeight;
+
+                Bitmap bitmap = mObjectBitmaps.getScaledObjectBitmap(type, sliceIndex);
+
+                int height = mObjectBitmaps.getScaledHeight(type, sliceIndex);
+                int width = mObjectBitmaps.getScaledWidth(type, sliceIndex);
+
+                dest.set(drawX, drawY - height, drawX + width, drawY);
+
+                //Only draw if the bitmap region intersects with the screen
+                if (Rect.intersects(dest, screen)) {
+                    //Only draw the part of the bitmap that the scaled bitmap was drawn to (for a minor performance benefit)
+                    origin.set(0, 0, width, height);
+                    canvas.drawBitmap(bitmap, origin, dest, p);
+                }
             }
-
-            currentSlice = currentSlice.next;
         }
     }
 
@@ -497,7 +541,6 @@ public class DrawThread extends Thread {
      * @param canvas
      */
     private void drawSelectedObject(Canvas canvas) {
-        float visualScale = mDrawState.getTileWidth() / (float) Constant.TILE_WIDTH;
         Rect origin = new Rect();
         Rect dest = new Rect();
         Paint p = new Paint();
@@ -505,7 +548,7 @@ public class DrawThread extends Thread {
         Rect screen = new Rect(0, 0, mDrawState.UIS_Width, mDrawState.UIS_Height);
         int type = mDrawState.UIS_SelectedObjectType;
 
-        int sliceWidth = OBJECTS.getScaledSliceWidth(type, mDrawState.getTileWidth());
+        int sliceWidth = mObjectBitmaps.getScaledSliceWidth(type);
         int drawX = mDrawState.isoToRealXDownscaling(mDrawState.UIS_DestRow + OBJECTS.objectNumRows[type] - 1, mDrawState.UIS_DestCol) + mOriginX
                 + mBitmapOffsetX;
         int drawY = mDrawState.isoToRealYDownscaling(mDrawState.UIS_DestRow + OBJECTS.objectNumRows[type] - 1, mDrawState.UIS_DestCol
@@ -514,8 +557,8 @@ public class DrawThread extends Thread {
         for (int i = 0; i < OBJECTS.getSliceCount(type); i++) {
             Bitmap bitmap = mObjectBitmaps.getScaledObjectBitmap(type, i);
 
-            int height = (int) Math.ceil(bitmap.getHeight() * visualScale);
-            int width = (int) Math.ceil(bitmap.getWidth() * visualScale);
+            int height = mObjectBitmaps.getScaledHeight(type, i);
+            int width = mObjectBitmaps.getScaledWidth(type, i);
 
             dest.set(drawX, drawY - height, drawX + width, drawY);
 
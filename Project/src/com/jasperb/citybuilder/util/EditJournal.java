@@ -0,0 +1,438 @@
+package com.jasperb.citybuilder.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.jasperb.citybuilder.CityModel;
+
+/**
+ * Append-only journal of the edits applied to a city model, kept at the end of the city's save (after the model itself),
+ * so that an edit costs a few bytes on disk rather than a save of the whole model.
+ * Edits are recorded in batches, one per update of the model, and written out in order on a background thread.
+ * Every so often, and once the journal has grown larger than the model it follows, a snapshot of the model is saved
+ * on the same thread (see save), replacing the save and the journal following it.
+ *
+ * Format: (int BATCH_MARKER, int length, byte[length] batch, int CRC32 of the batch)[] batches
+ * Each batch is: long seed (see CityModel.setEditSeed); int terrainEditCount; TerrainEdit[terrainEditCount];
+ * int objectEditCount; ObjectEdit[objectEditCount];
+ * A batch that was only partially written (e.g. the app was killed while writing it) ends the journal, and is cut off
+ * before anything is appended.
+ *
+ * There is one journal per city (see get), so that everything touching the city's save (restoring, appending and saving)
+ * happens in order on the journal's writer thread, even when the activity showing the city is recreated while the previous
+ * one still has writes queued. For the same reason, cities must be deleted through the journal (see delete).
+ * Otherwise not thread-safe: recording and saving must not happen at the same time (e.g. the draw thread records and saves,
+ * and the UI thread only saves once the draw thread has stopped).
+ */
+public class EditJournal {
+    /**
+     * String used for identifying this class
+     */
+    private static final String TAG = "EditJournal";
+
+    private static final int BATCH_MARKER = 0x4A524E4C;//"JRNL"
+    //The journal is never folded into the save because of its length before it is this long, however small the save
+    private static final long MIN_COMPACT_LENGTH = 64 * 1024;
+    //The longest time edits are only kept in the journal before the model is saved (in milliseconds)
+    private static final long AUTOSAVE_INTERVAL = 2 * 60 * 1000;
+    //How long the writer thread of a journal is kept once it has nothing left to write (in seconds)
+    private static final long WRITER_KEEP_ALIVE = 30;
+
+    private static final Map<File, EditJournal> sJournals = new HashMap<File, EditJournal>();//journal of each city's save
+
+    private final File mFile;//the city's save, followed by the journal
+    private final File mTempFile;//where new saves are written before they are moved over mFile
+    private final ThreadPoolExecutor mWriter;//runs everything that touches mFile, one task at a time in order
+    private final Random mSeeds = new Random();
+    private FileOutputStream mOutput = null;//appends to mFile, only used on the writer thread
+    private volatile long mModelLength = 0;//length of the model at the start of mFile
+    private long mLength = 0;//length of mFile (the model and the journal) once all recorded batches are written, only used on the writer thread
+    //Length of the batches recorded since the last snapshot that was saved successfully (added to when recording, taken off when saved)
+    private final AtomicLong mUnsavedLength = new AtomicLong();
+    private volatile long mUnsavedSince = 0;//time the first of those batches was recorded
+    private volatile boolean mSaving = false;//true from when a snapshot is given to save until the writer is done with it
+    private volatile long mRetrySaveAfter = 0;//time before which no more saves are suggested, after one failed
+    private volatile boolean mDeleted = false;//true once the city is deleted (see delete), until a new model is saved with create
+
+    /**
+     * Get the journal of a city, which is shared by everything using the city's save.
+     * 
+     * @param file
+     *            the city's save
+     * @param tempFile
+     *            where new saves are written before they are moved over the city's save, which must be on the same file system
+     */
+    public static EditJournal get(File file, File tempFile) {
+        synchronized (sJournals) {
+            EditJournal journal = sJournals.get(file.getAbsoluteFile());
+            if (journal == null) {
+                journal = new EditJournal(file, tempFile);
+                sJournals.put(file.getAbsoluteFile(), journal);
+            }
+            return journal;
+        }
+    }
+
+    /**
+     * Delete a city's save. If the city has a journal, batches and saves still queued on its writer thread are dropped instead of
+     * being written (so they can't bring the city back), and the journal is forgotten once the writer has caught up.
+     * 
+     * @param file
+     *            the city's save
+     */
+    public static void delete(File file) {
+        final File key = file.getAbsoluteFile();
+        final EditJournal journal;
+        synchronized (sJournals) {
+            journal = sJournals.get(key);
+        }
+        if (journal != null)
+            journal.mDeleted = true;
+        file.delete();//straight away, so the city isn't listed any more
+        if (journal == null)
+            return;
+        journal.mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                //Anything that was being written when the city was deleted is done by now
+                journal.closeOutput();
+                journal.mFile.delete();
+                journal.mTempFile.delete();
+                synchronized (sJournals) {
+                    if (sJournals.get(key) == journal)
+                        sJournals.remove(key);
+                }
+            }
+        });
+    }
+
+    private EditJournal(File file, File tempFile) {
+        mFile = file;
+        mTempFile = tempFile;
+        //A single thread that goes away while there is nothing to write, rather than one thread per city ever opened
+        mWriter = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Restore the city model from its save and replay the journal following it, once everything queued before has been written.
+     *
+     * @return the city model, which is 0 by 0 tiles if the save couldn't be restored
+     */
+    public CityModel restore() throws IOException {
+        CityModel model = runAndWait(new Callable<CityModel>() {
+            @Override
+            public CityModel call() throws IOException {
+                closeOutput();//appending starts over from the end of the last batch replayed
+                FileStreamUtils stream = new FileStreamUtils(new FileInputStream(mFile));
+                try {
+                    CityModel model = new CityModel(stream, false);
+                    if (model.getWidth() == 0)
+                        return model;
+                    mModelLength = stream.getPosition();
+                    mLength = replay(stream, model, mFile.length());
+                    Log.v(TAG, "Replayed " + (mLength - mModelLength) + " bytes of edits");
+                    return model;
+                } finally {
+                    stream.close();
+                }
+            }
+        });
+        mUnsavedLength.set(mLength - mModelLength);//the replayed edits are only in the journal, so are still to be saved
+        mUnsavedSince = System.currentTimeMillis();
+        return model;
+    }
+
+    /**
+     * Save a new city model as the start of the journal, replacing any existing save, once everything queued before has been written.
+     */
+    public void create(final CityModel model) throws IOException {
+        runAndWait(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                if (mDeleted) {
+                    //A city of the same name was deleted since this journal was got, so it was forgotten and is taken up again
+                    mDeleted = false;
+                    synchronized (sJournals) {
+                        if (!sJournals.containsKey(mFile.getAbsoluteFile()))
+                            sJournals.put(mFile.getAbsoluteFile(), EditJournal.this);
+                    }
+                }
+                writeSave(model);
+                return null;
+            }
+        });
+        mUnsavedLength.set(0);
+    }
+
+    /**
+     * Get a new seed for the next batch of edits to apply to the model.
+     */
+    public long nextSeed() {
+        return mSeeds.nextLong();
+    }
+
+    /**
+     * Record a batch of edits that were applied to the model, in order, after seeding it with CityModel.setEditSeed.
+     * The edits are copied, so they may be changed or reused once this returns.
+     *
+     * @param seed
+     *            the seed the model was given before the edits were applied
+     * @param terrainEdits
+     *            the terrain edits, which were applied first (see CityModel.applyTerrainEdits)
+     * @param objectEdits
+     *            the object edits, which were processed after the terrain edits
+     */
+    public void record(long seed, List<TerrainEdit> terrainEdits, List<ObjectEdit> objectEdits) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(seed);
+            out.writeInt(terrainEdits.size());
+            for (TerrainEdit edit : terrainEdits) {
+                edit.write(out);
+            }
+            out.writeInt(objectEdits.size());
+            for (ObjectEdit edit : objectEdits) {
+                edit.write(out);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);//never thrown by a ByteArrayOutputStream
+        }
+        final byte[] batch = bytes.toByteArray();
+        if (mUnsavedLength.getAndAdd(batch.length + 12) == 0)
+            mUnsavedSince = System.currentTimeMillis();
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    append(batch);
+                } catch (IOException e) {
+                    Log.d(TAG, "IO Exception on writing the journal: " + e.getLocalizedMessage());
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true if edits have been recorded since the model was last saved
+     */
+    public boolean hasUnsavedEdits() {
+        return mUnsavedLength.get() > 0;
+    }
+
+    /**
+     * @return true if it is time to save the model: the edits recorded since it was last saved are longer than the save,
+     *         or the first of them was recorded more than AUTOSAVE_INTERVAL ago. False while a save is in progress,
+     *         and for AUTOSAVE_INTERVAL after one failed.
+     */
+    public boolean shouldSave() {
+        long unsavedLength = mUnsavedLength.get();
+        if (unsavedLength == 0 || mSaving)
+            return false;
+        long now = System.currentTimeMillis();
+        if (now < mRetrySaveAfter)
+            return false;
+        return unsavedLength > Math.max(mModelLength, MIN_COMPACT_LENGTH) || now - mUnsavedSince > AUTOSAVE_INTERVAL;
+    }
+
+    /**
+     * Save a snapshot of the model in the background, replacing the save and the journal following it.
+     * Batches recorded later are written to a journal following the new save. If saving fails, the old save and journal are kept.
+     * Nothing is saved if the city is deleted before the snapshot is moved into place.
+     * 
+     * @param snapshot
+     *            snapshot of the model (see CityModel.snapshot) taken after the last recorded batch was applied, and before the next is
+     */
+    public void save(final CityModel snapshot) {
+        final long savedLength = mUnsavedLength.get();//the batches recorded so far are all in the snapshot
+        mSaving = true;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mDeleted)
+                        return;
+                    writeSave(snapshot);
+                    if (mUnsavedLength.addAndGet(-savedLength) > 0)
+                        mUnsavedSince = System.currentTimeMillis();//the batches recorded since are no older than the save
+                } catch (IOException e) {
+                    Log.d(TAG, "IO Exception on saving the city: " + e.getLocalizedMessage());
+                    e.printStackTrace();
+                    mRetrySaveAfter = System.currentTimeMillis() + AUTOSAVE_INTERVAL;
+                } finally {
+                    mSaving = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the journal's file once everything queued has been written (without waiting for it).
+     * The journal may still be used afterwards, e.g. by the next activity showing the city.
+     */
+    public void close() {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+            }
+        });
+    }
+
+    /**
+     * Run a task on the writer thread after everything queued before it, and wait for it to finish.
+     */
+    private <T> T runAndWait(Callable<T> task) throws IOException {
+        try {
+            return mWriter.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the journal");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Failed to use the journal", e.getCause());
+        }
+    }
+
+    /**
+     * Apply the batches following the model in a stream to the model, stopping at the first batch that is incomplete or corrupt.
+     *
+     * @param stream
+     *            stream positioned after the model
+     * @param streamLength
+     *            the length of the stream
+     * @return the offset of the end of the last batch applied, from the start of the stream
+     */
+    private static long replay(FileStreamUtils stream, CityModel model, long streamLength) throws IOException {
+        long end = stream.getPosition();
+        CRC32 crc = new CRC32();
+        List<TerrainEdit> terrainEdits = new ArrayList<TerrainEdit>();
+        try {
+            while (true) {
+                if (stream.readInt() != BATCH_MARKER)
+                    break;
+                int length = stream.readInt();
+                if (length < 0 || length > streamLength - stream.getPosition())
+                    break;
+                byte[] batch = new byte[length];
+                stream.readBytes(batch, length);
+                crc.reset();
+                crc.update(batch);
+                if (stream.readInt() != (int) crc.getValue())
+                    break;
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+                model.setEditSeed(in.readLong());
+                terrainEdits.clear();
+                for (int i = in.readInt(); i > 0; i--) {
+                    terrainEdits.add(TerrainEdit.read(in));
+                }
+                model.applyTerrainEdits(terrainEdits);
+                for (int i = in.readInt(); i > 0; i--) {
+                    ObjectEdit.read(in).replayEdit(model);
+                }
+                end = stream.getPosition();
+            }
+        } catch (EOFException e) {
+            //The journal ends part way through a batch
+        }
+        return end;
+    }
+
+    /**
+     * Write a batch to the end of the journal, first cutting off anything after the last complete batch.
+     * Nothing is written once the city has been deleted.
+     */
+    private void append(byte[] batch) throws IOException {
+        if (mDeleted)
+            return;
+        if (mOutput == null) {
+            //Opening the journal would otherwise create a save holding nothing but the journal, which can't be restored
+            if (!mFile.exists())
+                throw new IOException("The city's save no longer exists");
+            mOutput = new FileOutputStream(mFile, true);
+            if (mOutput.getChannel().size() > mLength)
+                mOutput.getChannel().truncate(mLength);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(batch);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.length + 12);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(BATCH_MARKER);
+        out.writeInt(batch.length);
+        out.write(batch);
+        out.writeInt((int) crc.getValue());
+        //Written with a single call, so that the app being killed part way through leaves as little of the batch as possible
+        mOutput.write(bytes.toByteArray());
+        mLength += bytes.size();
+    }
+
+    /**
+     * Save a model to the temporary file and move it over the city's save, which starts an empty journal following it.
+     * Only run on the writer thread. If this fails, the old save and its journal are left as they were.
+     */
+    private void writeSave(CityModel model) throws IOException {
+        boolean moved = false;
+        try {
+            if (!model.save(new FileStreamUtils(new FileOutputStream(mTempFile))))
+                throw new IOException("Failed to save the city");
+            //Make sure the new save is on the disk before it replaces the old one
+            RandomAccessFile saved = new RandomAccessFile(mTempFile, "rw");
+            try {
+                saved.getFD().sync();
+            } finally {
+                saved.close();
+            }
+            long length = mTempFile.length();
+            closeOutput();//the next batch is appended to the new save
+            if (mDeleted)
+                throw new IOException("The city was deleted while saving");//moving the save into place would bring it back
+            if (!mTempFile.renameTo(mFile))
+                throw new IOException("Failed to move the saved city into place");
+            moved = true;
+            mModelLength = length;
+            mLength = length;
+        } finally {
+            if (!moved)
+                mTempFile.delete();
+        }
+    }
+
+    private void closeOutput() {
+        if (mOutput != null) {
+            try {
+                mOutput.getFD().sync();
+                mOutput.close();
+            } catch (IOException e) {
+                Log.d(TAG, "IO Exception on closing the journal: " + e.getLocalizedMessage());
+            }
+            mOutput = null;
+        }
+    }
+}
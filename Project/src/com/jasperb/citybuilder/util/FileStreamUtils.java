@@ -1,82 +1,274 @@
 package com.jasperb.citybuilder.util;
 
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 
 /**
- * An interface to extend the FileInputStream/FileOutputStream with functions for writing/reading primitives other than bytes
+ * An interface to extend the FileInputStream/FileOutputStream with functions for writing/reading primitives other than bytes.
+ * Everything goes through a buffer and the file's channel, so the file is only touched once per BUFFER_SIZE bytes
+ * (rather than once per byte), and large transfers bypass the buffer entirely.
+ * Primitives are big-endian, the same as the streams used to be written byte by byte.
  */
 public class FileStreamUtils {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private FileOutputStream mOutputStream = null;
     private FileInputStream mInputStream = null;
+    private FileChannel mChannel;
+    //Writing: bytes not yet written to the channel are between 0 and the position
+    //Reading: bytes not yet read are between the position and the limit
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
 
     public FileStreamUtils(FileOutputStream outstream) {
         mOutputStream = outstream;
+        mChannel = outstream.getChannel();
     }
 
     public FileStreamUtils(FileInputStream instream) {
         mInputStream = instream;
+        mChannel = instream.getChannel();
+        mBuffer.limit(0);
     }
 
     public void write(byte[] buffer) throws IOException {
-        mOutputStream.write(buffer);
+        write(buffer, buffer.length);
+    }
+
+    public void write(byte[] buffer, int byteCount) throws IOException {
+        write(ByteBuffer.wrap(buffer, 0, byteCount));
+    }
+
+    /**
+     * Write the remaining bytes of a buffer (without copying direct buffers onto the heap)
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() <= mBuffer.remaining()) {
+            mBuffer.put(buffer);
+            return;
+        }
+        flushBuffer();
+        if (buffer.remaining() <= mBuffer.remaining()) {
+            mBuffer.put(buffer);
+        } else {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
     }
 
     public void write(byte oneByte) throws IOException {
-        mOutputStream.write(oneByte);
+        ensureWritable(1);
+        mBuffer.put(oneByte);
     }
 
     public void write(short twoBytes) throws IOException {
-        mOutputStream.write(twoBytes >> 8);
-        mOutputStream.write(twoBytes);
+        ensureWritable(2);
+        mBuffer.putShort(twoBytes);
     }
 
     public void write(int fourBytes) throws IOException {
-        mOutputStream.write(fourBytes >> 24);
-        mOutputStream.write(fourBytes >> 16);
-        mOutputStream.write(fourBytes >> 8);
-        mOutputStream.write(fourBytes);
+        ensureWritable(4);
+        mBuffer.putInt(fourBytes);
     }
 
     public void write(boolean oneByte) throws IOException {
-        mOutputStream.write(oneByte ? 1 : 0);
+        ensureWritable(1);
+        mBuffer.put((byte) (oneByte ? 1 : 0));
+    }
+
+    /**
+     * Write a non-negative int using as few bytes as needed, 7 bits per byte with the high bit set on all but the last byte
+     */
+    public void writeVarInt(int value) throws IOException {
+        ensureWritable(5);
+        while ((value & ~0x7F) != 0) {
+            mBuffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mBuffer.put((byte) value);
     }
 
+    /**
+     * Write out everything written so far
+     */
     public void flush() throws IOException {
+        flushBuffer();
         mOutputStream.flush();
     }
 
+    /**
+     * Read exactly byteCount bytes into the start of an array
+     *
+     * @throws EOFException
+     *             if the stream ends first
+     */
     public void readBytes(byte[] buffer, int byteCount) throws IOException {
-        mInputStream.read(buffer, 0, byteCount);
+        readFully(ByteBuffer.wrap(buffer, 0, byteCount));
+    }
+
+    /**
+     * Fill the remaining bytes of a buffer (without copying direct buffers onto the heap)
+     *
+     * @throws EOFException
+     *             if the stream ends first
+     */
+    public void readFully(ByteBuffer buffer) throws IOException {
+        //Use up the buffered bytes first
+        if (mBuffer.hasRemaining()) {
+            int limit = mBuffer.limit();
+            mBuffer.limit(mBuffer.position() + Math.min(mBuffer.remaining(), buffer.remaining()));
+            buffer.put(mBuffer);
+            mBuffer.limit(limit);
+        }
+        if (buffer.remaining() < BUFFER_SIZE) {
+            while (buffer.hasRemaining()) {
+                ensureReadable(1);
+                int limit = mBuffer.limit();
+                mBuffer.limit(mBuffer.position() + Math.min(mBuffer.remaining(), buffer.remaining()));
+                buffer.put(mBuffer);
+                mBuffer.limit(limit);
+            }
+        } else {
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer) < 0)
+                    throw new EOFException();
+            }
+        }
     }
 
     public byte readByte() throws IOException {
-        return (byte) mInputStream.read();
+        ensureReadable(1);
+        return mBuffer.get();
     }
 
     public short readShort() throws IOException {
-        short val = (short) (mInputStream.read() << 8);
-        val = (short) (val | mInputStream.read());
-        return val;
+        ensureReadable(2);
+        return mBuffer.getShort();
     }
 
     public int readInt() throws IOException {
-        int val = mInputStream.read() << 24;
-        val = val | (mInputStream.read() << 16);
-        val = val | (mInputStream.read() << 8);
-        val = val | mInputStream.read();
-        return val;
+        ensureReadable(4);
+        return mBuffer.getInt();
     }
 
     public boolean readBoolean() throws IOException {
-        return mInputStream.read() == 0 ? false : true;
+        ensureReadable(1);
+        return mBuffer.get() == 0 ? false : true;
     }
 
-    public void close() throws IOException {
+    /**
+     * Read an int written by writeVarInt
+     */
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            ensureReadable(1);
+            int b = mBuffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed variable length int");
+    }
+
+    /**
+     * @return the offset from the start of the file of the next byte to be written or read
+     */
+    public long getPosition() throws IOException {
         if (mOutputStream != null)
-            mOutputStream.close();
-        if (mInputStream != null)
-            mInputStream.close();
+            return mChannel.position() + mBuffer.position();
+        return mChannel.position() - mBuffer.remaining();
+    }
+
+    /**
+     * Write zeros until the next byte written would be at a multiple of some alignment, e.g. the start of a page
+     */
+    public void writePadding(int alignment) throws IOException {
+        int padding = (int) ((alignment - getPosition() % alignment) % alignment);
+        for (; padding > 0; padding--) {
+            write((byte) 0);
+        }
+    }
+
+    /**
+     * Continue reading from some offset from the start of the file, which may be past bytes that haven't been read
+     */
+    public void seek(long position) throws IOException {
+        mChannel.position(position);
+        mBuffer.clear();
+        mBuffer.limit(0);
+    }
+
+    /**
+     * Map part of the file being read into memory, so that it can be read without being copied.
+     * The mapping stays valid after the stream is closed.
+     * 
+     * @param position
+     *            offset of the part from the start of the file
+     * @param size
+     *            number of bytes in the part
+     * @return a read-only buffer of the part
+     * @throws EOFException
+     *             if the file ends before the end of the part
+     */
+    public ByteBuffer map(long position, long size) throws IOException {
+        if (position + size > mChannel.size())
+            throw new EOFException();
+        return mChannel.map(MapMode.READ_ONLY, position, size);
+    }
+
+    public void close() throws IOException {
+        try {
+            if (mOutputStream != null)
+                flushBuffer();
+        } finally {
+            if (mOutputStream != null)
+                mOutputStream.close();
+            if (mInputStream != null)
+                mInputStream.close();
+        }
+    }
+
+    /**
+     * Write the buffered bytes to the channel, leaving the buffer empty
+     */
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Make room in the buffer for writing some bytes
+     */
+    private void ensureWritable(int byteCount) throws IOException {
+        if (mBuffer.remaining() < byteCount)
+            flushBuffer();
+    }
+
+    /**
+     * Read from the channel until the buffer holds at least some bytes
+     *
+     * @throws EOFException
+     *             if the stream ends first
+     */
+    private void ensureReadable(int byteCount) throws IOException {
+        if (mBuffer.remaining() >= byteCount)
+            return;
+        mBuffer.compact();
+        while (mBuffer.position() < byteCount) {
+            if (mChannel.read(mBuffer) < 0) {
+                mBuffer.flip();
+                throw new EOFException();
+            }
+        }
+        mBuffer.flip();
     }
 }
@@ -32,7 +32,14 @@ public class ObjectBitmaps {
     public static final String TAG = "ObjectBitmaps";
 
     private static Bitmap[][] mFullObjectBitmaps = null;
-    private static Bitmap[][] mScaledObjectBitmaps = new Bitmap[OBJECTS.count][];
+    private Bitmap[][] mScaledObjectBitmaps = new Bitmap[OBJECTS.count][];
+    private int mMaxHeight = 0;//height of the tallest unscaled slice bitmap
+
+    //Geometry at the current scale, updated by remakeBitmaps
+    private int[] mScaledSliceWidths = new int[OBJECTS.count];//by type
+    private int[][] mScaledWidths = new int[OBJECTS.count][];//by type and slice, the width of the part of the bitmap drawn to
+    private int[][] mScaledHeights = new int[OBJECTS.count][];//by type and slice, the height of the part of the bitmap drawn to
+    private int mScaledMaxHeight = 0;
 
     private Canvas mCanvas = new Canvas();
     private Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
@@ -42,9 +49,12 @@ public class ObjectBitmaps {
         for (int i = 0; i < OBJECTS.count; i++) {
             try {
                 mScaledObjectBitmaps[i] = new Bitmap[mFullObjectBitmaps[i].length];
+                mScaledWidths[i] = new int[mFullObjectBitmaps[i].length];
+                mScaledHeights[i] = new int[mFullObjectBitmaps[i].length];
                 for (int j = 0; j < mFullObjectBitmaps[i].length; j++) {
                     mScaledObjectBitmaps[i][j] = Bitmap.createScaledBitmap(mFullObjectBitmaps[i][j], mFullObjectBitmaps[i][j].getWidth(),
                             mFullObjectBitmaps[i][j].getHeight(), false);
+                    mMaxHeight = Math.max(mMaxHeight, mFullObjectBitmaps[i][j].getHeight());
                 }
             } catch (NullPointerException e) {//Usually the result of a missing file in the assets folder
                 Log.d(TAG, "Failed to scale for object: " + i);
@@ -58,6 +68,31 @@ public class ObjectBitmaps {
         return mFullObjectBitmaps;
     }
 
+    /**
+     * Load the registry of object types from the assets, unless it is already loaded.
+     * 
+     * @param context
+     * @return true if the registry is loaded
+     */
+    public static boolean loadObjectTypes(Context context) {
+        if (OBJECTS.isLoaded())
+            return true;
+        InputStream ims = null;
+        try {
+            ims = context.getAssets().open(OBJECTS.MANIFEST);
+            OBJECTS.load(ims);
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString());
+        } finally {
+            if (ims != null) {
+                try {
+                    ims.close();
+                } catch (IOException e) {}
+            }
+        }
+        return OBJECTS.isLoaded();
+    }
+
     /**
      * Create a TileBitmaps objects, loading the static bitmaps from the assets into memory.
      * 
@@ -136,12 +171,16 @@ public class ObjectBitmaps {
         mMatrix.setScale(visualScale, visualScale);
 
         for (int i = 0; i < mFullObjectBitmaps.length; i++) {
+            mScaledSliceWidths[i] = OBJECTS.getScaledSliceWidth(i, state.getTileWidth());
             for (int j = 0; j < mFullObjectBitmaps[i].length; j++) {
                 mScaledObjectBitmaps[i][j].eraseColor(android.graphics.Color.TRANSPARENT);
                 mCanvas.setBitmap(mScaledObjectBitmaps[i][j]);
                 mCanvas.drawBitmap(mFullObjectBitmaps[i][j], mMatrix, mPaint);
+                mScaledWidths[i][j] = (int) Math.ceil(mFullObjectBitmaps[i][j].getWidth() * visualScale);
+                mScaledHeights[i][j] = (int) Math.ceil(mFullObjectBitmaps[i][j].getHeight() * visualScale);
             }
         }
+        mScaledMaxHeight = (int) Math.ceil(mMaxHeight * visualScale);
 
     }
 
@@ -156,4 +195,46 @@ public class ObjectBitmaps {
     public Bitmap getScaledObjectBitmap(int object, int slice) {
         return mScaledObjectBitmaps[object][slice];
     }
+
+    /**
+     * Get the width of the slices of an object type at the scale of the last call to remakeBitmaps.
+     * 
+     * @param object
+     *            the type of object
+     */
+    public int getScaledSliceWidth(int object) {
+        return mScaledSliceWidths[object];
+    }
+
+    /**
+     * Get the width of the part of a scaled bitmap that the slice was drawn to by the last call to remakeBitmaps.
+     * 
+     * @param object
+     *            the type of object
+     * @param slice
+     *            the slice
+     */
+    public int getScaledWidth(int object, int slice) {
+        return mScaledWidths[object][slice];
+    }
+
+    /**
+     * Get the height of the part of a scaled bitmap that the slice was drawn to by the last call to remakeBitmaps.
+     * 
+     * @param object
+     *            the type of object
+     * @param slice
+     *            the slice
+     */
+    public int getScaledHeight(int object, int slice) {
+        return mScaledHeights[object][slice];
+    }
+
+    /**
+     * Get the height of the tallest object slice at the scale of the last call to remakeBitmaps,
+     * which bounds how far above its tiles an object can be drawn.
+     */
+    public int getScaledMaxHeight() {
+        return mScaledMaxHeight;
+    }
 }
@@ -1,16 +1,24 @@
 package com.jasperb.citybuilder.util;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import com.jasperb.citybuilder.CityModel;
+import com.jasperb.citybuilder.Constant.OBJECTS;
 
 public class ObjectEdit {
     public enum EDIT_TYPE {
-        ADD, REMOVE
+        ADD, REMOVE, ADD_BATCH, MOVE, REMOVE_BATCH, MOVE_BATCH
     };
 
     int id;
     int type;
-    int row;
-    int col;
+    int row;//minimum row of the object (destination of a MOVE edit)
+    int col;//minimum column of the object (destination of a MOVE edit)
+    int[] ids, types, rows, cols;//objects of a batch edit (only ids for REMOVE_BATCH and MOVE_BATCH)
+    int count;//number of objects of a batch edit
+    int rowOffset, colOffset;//distance to move the objects of a MOVE_BATCH edit
     EDIT_TYPE editType;
 
     public ObjectEdit(EDIT_TYPE editType, int row, int col, int type, int id) {
@@ -21,20 +29,259 @@ public class ObjectEdit {
         this.editType = editType;
     }
 
+    /**
+     * Create a MOVE edit, moving an existing object so that its minimum row and column are at a new location.
+     */
+    public ObjectEdit(int id, int row, int col) {
+        this.id = id;
+        this.row = row;
+        this.col = col;
+        this.editType = EDIT_TYPE.MOVE;
+    }
+
     public ObjectEdit(EDIT_TYPE editType, int id) {
         this.id = id;
         this.editType = editType;
     }
 
-    public void processEdit(CityModel model) {
+    /**
+     * Create an ADD_BATCH edit, adding several objects at once. The arrays are kept, not copied.
+     */
+    public ObjectEdit(int[] rows, int[] cols, int[] types, int[] ids, int count) {
+        this.rows = rows;
+        this.cols = cols;
+        this.types = types;
+        this.ids = ids;
+        this.count = count;
+        this.editType = EDIT_TYPE.ADD_BATCH;
+    }
+
+    /**
+     * Create a REMOVE_BATCH edit, removing several objects at once (without freeing their IDs). The array is kept, not copied.
+     */
+    public ObjectEdit(int[] ids, int count) {
+        this.ids = ids;
+        this.count = count;
+        this.editType = EDIT_TYPE.REMOVE_BATCH;
+    }
+
+    /**
+     * Create a MOVE_BATCH edit, moving several objects by the same offset at once. The array is kept, not copied.
+     */
+    public ObjectEdit(int[] ids, int count, int rowOffset, int colOffset) {
+        this.ids = ids;
+        this.count = count;
+        this.rowOffset = rowOffset;
+        this.colOffset = colOffset;
+        this.editType = EDIT_TYPE.MOVE_BATCH;
+    }
+
+    /**
+     * Apply the edit to a model. Edits are queued, so the model may have changed since the edit was requested:
+     * objects that no longer fit are not added (freeing their IDs), and objects that no longer fit at their destination are not moved.
+     * 
+     * @return true if the edit was applied as requested, false if objects weren't added or moved
+     */
+    public boolean processEdit(CityModel model) {
         switch (editType) {
         case ADD:
-            model.addObject(row, col, type, id);
-            break;
+            if (model.isAreaFree(row, col, row + OBJECTS.objectNumRows[type] - 1, col + OBJECTS.objectNumColumns[type] - 1)) {
+                model.addObject(row, col, type, id);
+                return true;
+            }
+            model.freeObjectID(id);
+            return false;
         case REMOVE:
             model.removeObjectSlices(id);
+            return true;
+        case ADD_BATCH:
+            if (model.canAddObjects(rows, cols, types, count)) {
+                model.addObjects(rows, cols, types, ids, count);
+                return true;
+            }
+            for (int i = 0; i < count; i++) {
+                model.freeObjectID(ids[i]);
+            }
+            return false;
+        case MOVE:
+            return model.moveObject(id, row, col);
+        case REMOVE_BATCH:
+            model.removeObjects(ids, count);
+            return true;
+        case MOVE_BATCH:
+            return model.moveObjects(ids, count, rowOffset, colOffset);
+        }
+        return false;
+    }
+
+    public EDIT_TYPE getEditType() {
+        return editType;
+    }
+
+    /**
+     * @return the ID of the object of an ADD, REMOVE or MOVE edit
+     */
+    public int getID() {
+        return id;
+    }
+
+    /**
+     * @return the minimum row of the object of an ADD edit, or the destination of a MOVE edit
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * @return the minimum column of the object of an ADD edit, or the destination of a MOVE edit
+     */
+    public int getCol() {
+        return col;
+    }
+
+    public int getRowOffset() {
+        return rowOffset;
+    }
+
+    public int getColOffset() {
+        return colOffset;
+    }
+
+    /**
+     * Apply an edit read back from a journal (see EditJournal) to a model. The IDs of the objects are marked as used and unused
+     * along with the edit, just as they were when the edit was requested and processed.
+     */
+    void replayEdit(CityModel model) {
+        switch (editType) {
+        case ADD:
+            model.reserveObjectID(id);
             break;
+        case ADD_BATCH:
+            for (int i = 0; i < count; i++) {
+                model.reserveObjectID(ids[i]);
+            }
+            break;
+        default:
+            break;
+        }
+        processEdit(model);
+        switch (editType) {
+        case REMOVE:
+            model.freeObjectID(id);
+            break;
+        case REMOVE_BATCH:
+            for (int i = 0; i < count; i++) {
+                model.freeObjectID(ids[i]);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Write the edit to a stream.
+     * Format: byte editType, followed by the fields used by that type of edit (with each array of a batch edit written after count)
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(editType.ordinal());
+        switch (editType) {
+        case ADD:
+            out.writeInt(row);
+            out.writeInt(col);
+            out.writeInt(type);
+            out.writeInt(id);
+            break;
+        case REMOVE:
+            out.writeInt(id);
+            break;
+        case ADD_BATCH:
+            out.writeInt(count);
+            writeInts(out, rows, count);
+            writeInts(out, cols, count);
+            writeInts(out, types, count);
+            writeInts(out, ids, count);
+            break;
+        case MOVE:
+            out.writeInt(id);
+            out.writeInt(row);
+            out.writeInt(col);
+            break;
+        case REMOVE_BATCH:
+            out.writeInt(count);
+            writeInts(out, ids, count);
+            break;
+        case MOVE_BATCH:
+            out.writeInt(count);
+            writeInts(out, ids, count);
+            out.writeInt(rowOffset);
+            out.writeInt(colOffset);
+            break;
+        }
+    }
+
+    /**
+     * Read an edit written by write
+     */
+    static ObjectEdit read(DataInputStream in) throws IOException {
+        int editType = in.readUnsignedByte();
+        if (editType >= EDIT_TYPE.values().length)
+            throw new IOException("Unknown object edit type " + editType);
+        switch (EDIT_TYPE.values()[editType]) {
+        case ADD: {
+            int row = in.readInt(), col = in.readInt(), type = in.readInt();
+            checkType(type);
+            return new ObjectEdit(EDIT_TYPE.ADD, row, col, type, in.readInt());
+        }
+        case REMOVE:
+            return new ObjectEdit(EDIT_TYPE.REMOVE, in.readInt());
+        case ADD_BATCH: {
+            int count = in.readInt();
+            int[] rows = readInts(in, count), cols = readInts(in, count), types = readInts(in, count);
+            for (int i = 0; i < count; i++) {
+                checkType(types[i]);
+            }
+            return new ObjectEdit(rows, cols, types, readInts(in, count), count);
+        }
+        case MOVE: {
+            int id = in.readInt(), row = in.readInt();
+            return new ObjectEdit(id, row, in.readInt());
+        }
+        case REMOVE_BATCH: {
+            int count = in.readInt();
+            return new ObjectEdit(readInts(in, count), count);
+        }
+        default: {
+            int count = in.readInt();
+            int[] ids = readInts(in, count);
+            int rowOffset = in.readInt();
+            return new ObjectEdit(ids, count, rowOffset, in.readInt());
+        }
+        }
+    }
+
+    /**
+     * Throw an IOException if an object type read from a stream isn't in the loaded registry
+     */
+    private static void checkType(int type) throws IOException {
+        if (type < 0 || type >= OBJECTS.count)
+            throw new IOException("Unknown object type " + type);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        if (count < 0 || count > in.available() / 4)
+            throw new IOException("Malformed object edit");
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
         }
+        return values;
     }
 
     public boolean equals(ObjectEdit o) {
@@ -44,6 +291,13 @@ public class ObjectEdit {
         switch (editType) {
         case ADD:
             return o.id == id && o.row == row && o.col == col && o.type == type;
+        case ADD_BATCH:
+        case REMOVE_BATCH:
+            return o.ids == ids;
+        case MOVE_BATCH:
+            return o.ids == ids && o.rowOffset == rowOffset && o.colOffset == colOffset;
+        case MOVE:
+            return o.id == id && o.row == row && o.col == col;
         default:
             return o.id == id;
         }
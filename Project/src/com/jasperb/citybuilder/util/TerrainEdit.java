@@ -3,6 +3,10 @@
  */
 package com.jasperb.citybuilder.util;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import com.jasperb.citybuilder.CityModel;
 
 public class TerrainEdit {
@@ -31,6 +35,52 @@ public class TerrainEdit {
         mBlend = blend;
     }
 
+    public int getStartRow() {
+        return mStartRow;
+    }
+
+    public int getStartCol() {
+        return mStartCol;
+    }
+
+    public int getEndRow() {
+        return mEndRow;
+    }
+
+    public int getEndCol() {
+        return mEndCol;
+    }
+
+    public int getTerrain() {
+        return mTerrain;
+    }
+
+    public boolean getBlend() {
+        return mBlend;
+    }
+
+    /**
+     * Write the edit to a stream.
+     * Format: int startRow, startCol, endRow, endCol; byte terrain; boolean blend;
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(mStartRow);
+        out.writeInt(mStartCol);
+        out.writeInt(mEndRow);
+        out.writeInt(mEndCol);
+        out.writeByte(mTerrain);
+        out.writeBoolean(mBlend);
+    }
+
+    /**
+     * Read an edit written by write
+     */
+    static TerrainEdit read(DataInputStream in) throws IOException {
+        int startRow = in.readInt(), startCol = in.readInt(), endRow = in.readInt(), endCol = in.readInt();
+        int terrain = in.readByte();
+        return new TerrainEdit(startRow, startCol, endRow, endCol, terrain, in.readBoolean());
+    }
+
     public void setTerrain(CityModel model) {
         if (mStartRow == mEndRow && mStartCol == mEndCol) {
             model.setTerrain(mStartRow, mStartCol, mTerrain, mBlend);